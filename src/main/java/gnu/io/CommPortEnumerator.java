@@ -58,6 +58,7 @@
 package gnu.io;
 
 import java.util.Enumeration;
+import java.util.NoSuchElementException;
 
 /**
  * @author Trent Jarvi
@@ -66,28 +67,23 @@ import java.util.Enumeration;
  */
 class CommPortEnumerator implements Enumeration<CommPortIdentifier> {
 
-    private CommPortIdentifier index;
+    private final CommPortIdentifier[] ports;
+    private int index;
+
+    CommPortEnumerator(CommPortIdentifier[] ports) {
+        this.ports = ports;
+    }
 
     @Override
     public CommPortIdentifier nextElement() {
-        synchronized (CommPortIdentifier.Sync) {
-            if (index != null) {
-                index = index.next;
-            } else {
-                index = CommPortIdentifier.CommPortIndex;
-            }
-            return index;
+        if (index >= ports.length) {
+            throw new NoSuchElementException();
         }
+        return ports[index++];
     }
 
     @Override
     public boolean hasMoreElements() {
-        synchronized (CommPortIdentifier.Sync) {
-            if (index != null) {
-                return index.next != null;
-            } else {
-                return CommPortIdentifier.CommPortIndex != null;
-            }
-        }
+        return index < ports.length;
     }
 }
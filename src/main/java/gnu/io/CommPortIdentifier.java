@@ -58,9 +58,15 @@
 package gnu.io;
 
 import java.io.FileDescriptor;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Vector;
 import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -113,10 +119,6 @@ public class CommPortIdentifier {
      * The driver which is used to access the associated port.
      */
     private CommDriver RXTXDriver;
-    // TODO (by Alexander Graf) commPortIndex and next are part of reinventing
-    // the wheel by implementing a linked list
-    static CommPortIdentifier CommPortIndex;
-    CommPortIdentifier next;
     /**
      * A PORT_* constant indicating the port hardware type.
      */
@@ -124,6 +126,49 @@ public class CommPortIdentifier {
     // TODO (by Alexander Graf) the access to this field from all corners of
     // rxtx is really ugly and should be rewritten
     static final Object Sync = new Object();
+    /**
+     * How long a scan of the system ports stays valid, taken from the
+     * <code>gnu.io.rxtx.PortCacheMillis</code> system property. Zero rescans
+     * on every <code>getPortIdentifiers()</code> call, a negative value keeps
+     * the result until <code>refresh()</code> is called.
+     */
+    private static final long CACHE_NANOS = cacheNanos(Long.getLong("gnu.io.rxtx.PortCacheMillis", 1000));
+    /**
+     * Registered ports in registration order, guarded by <code>Sync</code>.
+     */
+    private static ArrayList<CommPortIdentifier> ports = new ArrayList<CommPortIdentifier>();
+    /**
+     * Names of the ports in <code>ports</code>, guarded by <code>Sync</code>.
+     */
+    private static HashSet<String> portNames = new HashSet<String>();
+    /**
+     * Immutable snapshot of <code>ports</code>, republished under
+     * <code>Sync</code> whenever the list changes and read without locking.
+     */
+    private static volatile CommPortIdentifier[] registry = new CommPortIdentifier[0];
+    /**
+     * The published ports by name, read without locking. When a name was
+     * registered twice the first registration wins.
+     */
+    private static final ConcurrentHashMap<String, CommPortIdentifier> index = new ConcurrentHashMap<String, CommPortIdentifier>();
+    /**
+     * <code>System.nanoTime()</code> of the last completed scan.
+     */
+    private static volatile long scannedAt;
+    /**
+     * Set while a scan rebuilds the list, so that half built lists are not
+     * published.
+     */
+    private static boolean scanning;
+    /**
+     * Listeners told about ports being added to or removed from the registry.
+     */
+    private static final CopyOnWriteArrayList<CommPortRegistryListener> registryListeners = new CopyOnWriteArrayList<CommPortRegistryListener>();
+    /**
+     * Registry changes not yet delivered to the listeners, guarded by
+     * <code>Sync</code>.
+     */
+    private static ArrayList<RegistryChange> pendingChanges = new ArrayList<RegistryChange>();
     /**
      * A list of registered <code>PortOwnershipListener</code>s.
      */
@@ -138,12 +183,7 @@ public class CommPortIdentifier {
      * class
      */
     static {
-        try {
-            CommDriver RXTXDriver = (CommDriver) Class.forName("gnu.io.RXTXCommDriver").newInstance();
-            RXTXDriver.initialize();
-        } catch (Throwable e) {
-            System.err.println(e + " thrown while loading " + "gnu.io.RXTXCommDriver");
-        }
+        rescan();
 
         String OS = System.getProperty("os.name");
         if (OS.toLowerCase().indexOf("linux") == -1) {
@@ -167,7 +207,6 @@ public class CommPortIdentifier {
         this.portName = portName;
         this.commPort = commPort;
         this.portType = portType;
-        this.next = null;
         this.RXTXDriver = driver;
     }
 
@@ -194,27 +233,180 @@ public class CommPortIdentifier {
 
     /**
      * AddIdentifierToList() accept: The cpi to add to the list. perform:
-     * return: exceptions: comments:
+     * return: exceptions: comments: a name already in the list is not added
+     * again.
      */
-    //TODO (Alexander Graf) This method/class seems to reinvent the wheel
-    //by implementing its own linked list functionallity
     private static void AddIdentifierToList(CommPortIdentifier cpi) {
         LOGGER.fine("CommPortIdentifier:AddIdentifierToList()");
         synchronized (Sync) {
-            if (CommPortIndex == null) {
-                CommPortIndex = cpi;
-                LOGGER.fine("CommPortIdentifier:AddIdentifierToList() null");
-            } else {
-                CommPortIdentifier index = CommPortIndex;
-                while (index.next != null) {
-                    index = index.next;
-                    LOGGER.fine("CommPortIdentifier:AddIdentifierToList() index.next");
+            if (!portNames.add(cpi.portName)) {
+                LOGGER.fine("CommPortIdentifier:AddIdentifierToList() " + cpi.portName + " already registered");
+                return;
+            }
+            ports.add(cpi);
+            if (!scanning) {
+                publish();
+            }
+        }
+        if (!Thread.holdsLock(Sync)) {
+            fireRegistryChanges();
+        }
+    }
+
+    static boolean isRegistered(String portName) {
+        return index.containsKey(portName);
+    }
+
+    /**
+     * Removes a port from the registry, for example because its device node
+     * disappeared.
+     *
+     * @param portName name of the port as registered
+     */
+    static void removePortName(String portName) {
+        LOGGER.fine("CommPortIdentifier:removePortName(" + portName + ")");
+        synchronized (Sync) {
+            if (!portNames.remove(portName)) {
+                return;
+            }
+            for (Iterator<CommPortIdentifier> it = ports.iterator(); it.hasNext();) {
+                if (it.next().portName.equals(portName)) {
+                    it.remove();
+                    break;
+                }
+            }
+            if (!scanning) {
+                publish();
+            }
+        }
+        if (!Thread.holdsLock(Sync)) {
+            fireRegistryChanges();
+        }
+    }
+
+    /**
+     * Runs an update of the registry under the lock on <code>Sync</code>, so
+     * that it cannot interleave with a scan, and delivers the resulting
+     * changes once the lock is released. Used by the device directory
+     * watcher to remove ports.
+     *
+     * @param update adds or removes ports
+     */
+    static void update(Runnable update) {
+        synchronized (Sync) {
+            update.run();
+        }
+        fireRegistryChanges();
+    }
+
+    /**
+     * Publishes <code>ports</code> as the new snapshot and brings the name
+     * index in line with it. Must be called with the lock on
+     * <code>Sync</code> held.
+     */
+    private static void publish() {
+        CommPortIdentifier[] snapshot = ports.toArray(new CommPortIdentifier[ports.size()]);
+        HashMap<String, CommPortIdentifier> byName = new HashMap<String, CommPortIdentifier>();
+        for (CommPortIdentifier p : snapshot) {
+            byName.putIfAbsent(p.portName, p);
+        }
+        if (!registryListeners.isEmpty()) {
+            for (CommPortIdentifier p : index.values()) {
+                if (byName.get(p.portName) != p) {
+                    pendingChanges.add(new RegistryChange(p, false));
+                }
+            }
+            for (CommPortIdentifier p : snapshot) {
+                if (byName.get(p.portName) == p && index.get(p.portName) != p) {
+                    pendingChanges.add(new RegistryChange(p, true));
+                }
+            }
+        }
+        index.putAll(byName);
+        index.keySet().retainAll(byName.keySet());
+        registry = snapshot;
+    }
+
+    /**
+     * Delivers the pending registry changes. Must be called without the lock
+     * on <code>Sync</code> held so that listeners cannot stall lookups.
+     */
+    private static void fireRegistryChanges() {
+        ArrayList<RegistryChange> changes;
+        synchronized (Sync) {
+            if (pendingChanges.isEmpty()) {
+                return;
+            }
+            changes = pendingChanges;
+            pendingChanges = new ArrayList<RegistryChange>();
+        }
+        for (RegistryChange change : changes) {
+            for (CommPortRegistryListener l : registryListeners) {
+                try {
+                    if (change.added) {
+                        l.portAdded(change.port);
+                    } else {
+                        l.portRemoved(change.port);
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.warning("port registry listener failed: " + e);
                 }
-                index.next = cpi;
             }
         }
     }
 
+    private static final class RegistryChange {
+
+        final CommPortIdentifier port;
+        final boolean added;
+
+        RegistryChange(CommPortIdentifier port, boolean added) {
+            this.port = port;
+            this.added = added;
+        }
+    }
+
+    /**
+     * Registers a listener which is told when ports are added to or removed
+     * from the registry. While at least one listener is registered the
+     * device directory is watched, so that ports appearing or disappearing
+     * there are probed and reported individually without a full rescan.
+     *
+     * @param l the listener to register
+     */
+    public static void addPortRegistryListener(CommPortRegistryListener l) {
+        LOGGER.fine("static CommPortIdentifier:addPortRegistryListener()");
+        synchronized (registryListeners) {
+            if (registryListeners.addIfAbsent(l)) {
+                PortWatcher.start();
+            }
+        }
+    }
+
+    /**
+     * Unregisters a listener. The device directory watcher stops with the
+     * last listener.
+     *
+     * @param l the listener to unregister
+     */
+    public static void removePortRegistryListener(CommPortRegistryListener l) {
+        LOGGER.fine("static CommPortIdentifier:removePortRegistryListener()");
+        synchronized (registryListeners) {
+            if (registryListeners.remove(l) && registryListeners.isEmpty()) {
+                PortWatcher.stop();
+            }
+        }
+    }
+
+    private static long cacheNanos(long millis) {
+        return millis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static boolean isStale() {
+        return CACHE_NANOS >= 0 && System.nanoTime() - scannedAt >= CACHE_NANOS;
+    }
+
+
     /**
      * Registers an ownership listener. The listener will be informed when other
      * applications open or close the port which is represented by this
@@ -277,28 +469,18 @@ public class CommPortIdentifier {
      */
     static public CommPortIdentifier getPortIdentifier(String s) throws NoSuchPortException {
         LOGGER.fine("CommPortIdentifier:getPortIdentifier(" + s + ")");
-        CommPortIdentifier index;
-
-        synchronized (Sync) {
-            index = CommPortIndex;
-            while (index != null && !index.portName.equals(s)) {
-                index = index.next;
-            }
-            if (index == null) {
-                /* This may slow things down but if you pass the string for the port after
-                 a device is plugged in, you can find it now.
-
-                 http://bugzilla.qbang.org/show_bug.cgi?id=48
-                 */
-                getPortIdentifiers();
-                index = CommPortIndex;
-                while (index != null && !index.portName.equals(s)) {
-                    index = index.next;
-                }
-            }
+        CommPortIdentifier id = index.get(s);
+        if (id == null) {
+            /* This may slow things down but if you pass the string for the port after
+             a device is plugged in, you can find it now.
+
+             http://bugzilla.qbang.org/show_bug.cgi?id=48
+             */
+            refresh();
+            id = index.get(s);
         }
-        if (index != null) {
-            return index;
+        if (id != null) {
+            return id;
         } else {
             LOGGER.fine("not found!" + s);
             throw new NoSuchPortException();
@@ -315,16 +497,11 @@ public class CommPortIdentifier {
     static public CommPortIdentifier getPortIdentifier(CommPort p) throws NoSuchPortException {
         LOGGER.fine("CommPortIdentifier:getPortIdentifier(CommPort)");
 
-        CommPortIdentifier c;
-        synchronized (Sync) {
-            c = CommPortIndex;
-            while (c != null && c.commPort != p) {
-                c = c.next;
+        for (CommPortIdentifier c : registry) {
+            if (c.commPort == p) {
+                return c;
             }
         }
-        if (c != null) {
-            return (c);
-        }
 
         LOGGER.fine("not found!" + p.getName());
         throw new NoSuchPortException();
@@ -332,7 +509,10 @@ public class CommPortIdentifier {
 
     /**
      * Returns an enumeration of port identifiers which represent the
-     * communication ports currently available on the system.
+     * communication ports currently available on the system. The ports are
+     * taken from the last scan unless it is older than
+     * <code>gnu.io.rxtx.PortCacheMillis</code>; use <code>refresh()</code> to
+     * force a new scan.
      *
      * @return enumeration of available communication ports
      */
@@ -340,20 +520,44 @@ public class CommPortIdentifier {
 
         LOGGER.fine("static CommPortIdentifier:getPortIdentifiers()");
 
-        //Do not allow anybody get any ports while we are re-initializing
-        //because the CommPortIndex points to invalid instances during that time
-        synchronized (Sync) {
-            //Remember old ports in order to restore them for ownership events later
-            HashMap oldPorts = new HashMap();
-            CommPortIdentifier p = CommPortIndex;
-            while (p != null) {
-                oldPorts.put(p.portName, p);
-                p = p.next;
+        if (isStale()) {
+            synchronized (Sync) {
+                //Another thread may have rescanned while we waited for the lock
+                if (isStale()) {
+                    rescan();
+                }
             }
-            CommPortIndex = null;
+            fireRegistryChanges();
+        }
+        return new CommPortEnumerator(registry);
+    }
+
+    /**
+     * Scans the system for ports now, regardless of the age of the cached
+     * port list. Lookups running concurrently keep seeing the previous list
+     * until the scan completes.
+     */
+    public static void refresh() {
+        LOGGER.fine("static CommPortIdentifier:refresh()");
+        synchronized (Sync) {
+            rescan();
+        }
+        fireRegistryChanges();
+    }
+
+    /**
+     * Rebuilds the port list by initializing the driver and publishes it.
+     */
+    private static void rescan() {
+        synchronized (Sync) {
+            //The published snapshot and index keep serving lookups while
+            //the driver registers the ports it finds into a fresh list
+            ports = new ArrayList<CommPortIdentifier>();
+            portNames = new HashSet<String>();
+            scanning = true;
             try {
                 //Initialize RXTX: This leads to detecting all ports
-                //and writing them into our CommPortIndex through our method
+                //and writing them into our list through our method
                 //{@link #addPortName(java.lang.String, int, gnu.io.CommDriver)}
                 //This works while lock on Sync is held
                 CommDriver RXTXDriver = (CommDriver) Class.forName("gnu.io.RXTXCommDriver").newInstance();
@@ -361,31 +565,24 @@ public class CommPortIdentifier {
                 //Restore old CommPortIdentifier objects where possible, 
                 //in order to support proper ownership event handling.
                 //Clients might still have references to old identifiers!
-                CommPortIdentifier curPort = CommPortIndex;
-                CommPortIdentifier prevPort = null;
-                while (curPort != null) {
-                    CommPortIdentifier matchingOldPort = (CommPortIdentifier) oldPorts.get(curPort.portName);
-                    if (matchingOldPort != null && matchingOldPort.portType == curPort.portType) {
+                for (int i = 0; i < ports.size(); i++) {
+                    CommPortIdentifier curPort = ports.get(i);
+                    CommPortIdentifier matchingOldPort = index.get(curPort.portName);
+                    if (matchingOldPort != null && matchingOldPort != curPort && matchingOldPort.portType == curPort.portType) {
                         //replace new port by old one
                         matchingOldPort.RXTXDriver = curPort.RXTXDriver;
-                        matchingOldPort.next = curPort.next;
-                        if (prevPort == null) {
-                            CommPortIndex = matchingOldPort;
-                        } else {
-                            prevPort.next = matchingOldPort;
-                        }
-                        prevPort = matchingOldPort;
-                    } else {
-                        prevPort = curPort;
+                        ports.set(i, matchingOldPort);
                     }
-                    curPort = curPort.next;
                 }
             } catch (Throwable e) {
                 System.err.println(e + " thrown while loading " + "gnu.io.RXTXCommDriver");
                 System.err.flush();
+            } finally {
+                scanning = false;
+                publish();
+                scannedAt = System.nanoTime();
             }
         }
-        return new CommPortEnumerator();
     }
 
     /**
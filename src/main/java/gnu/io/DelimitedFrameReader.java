@@ -0,0 +1,350 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Logger;
+
+/**
+ * Splits a byte stream into frames ended by one of several delimiters, for
+ * line based traffic such as NMEA sentences or AT command responses.
+ *
+ * Delimiters may be of any length. Received bytes are kept in an internal
+ * buffer that is searched eight bytes at a time for the first byte of any
+ * delimiter, and a byte is looked at again only when it might start a
+ * delimiter that has not completely arrived yet. When several delimiters
+ * match at the same place the longest wins, so with both "\r\n" and "\n"
+ * configured a frame ending in "\r\n" is not split.
+ *
+ * Reads from the underlying stream follow its timeout rules. With a
+ * receive timeout set on the port, <code>readFrame</code> returns -1 when
+ * the timeout expires before a complete frame arrived; the partial frame
+ * is kept for the next call. Not thread safe.
+ *
+ * @version 2.3
+ */
+public final class DelimitedFrameReader {
+
+    private static final Logger logger = Logger.getLogger(DelimitedFrameReader.class.getName());
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private final InputStream in;
+    private final int maxFrameLength;
+    /* longest first */
+    private final byte[][] delimiters;
+    /* first bytes of the delimiters, without duplicates, spread over a long */
+    private final long[] firstBytes;
+    private final int longestDelimiter;
+
+    private final byte[] buf;
+    private final ByteBuffer words;
+    /* buffered frame data is buf[start, end), nothing before scan matches */
+    private int start = 0;
+    private int scan = 0;
+    private int end = 0;
+
+    private byte[] lastDelimiter;
+
+    /**
+     * @param in stream to read, typically <code>port.getInputStream()</code>
+     * @param maxFrameLength longest frame accepted, without the delimiter
+     * @param delimiters one or more non empty delimiters
+     */
+    public DelimitedFrameReader(InputStream in, int maxFrameLength, byte[]... delimiters) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("Frame length must be positive");
+        }
+        if (delimiters.length == 0) {
+            throw new IllegalArgumentException("No delimiter given");
+        }
+        this.in = in;
+        this.maxFrameLength = maxFrameLength;
+        this.delimiters = new byte[delimiters.length][];
+        int longest = 0;
+        for (int i = 0; i < delimiters.length; i++) {
+            if (delimiters[i].length == 0) {
+                throw new IllegalArgumentException("Empty delimiter");
+            }
+            this.delimiters[i] = delimiters[i].clone();
+            longest = Math.max(longest, delimiters[i].length);
+        }
+        Arrays.sort(this.delimiters, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return b.length - a.length;
+            }
+        });
+        this.longestDelimiter = longest;
+        long[] firsts = new long[this.delimiters.length];
+        int n = 0;
+        for (byte[] d : this.delimiters) {
+            long pattern = (d[0] & 0xffL) * ONES;
+            boolean seen = false;
+            for (int i = 0; i < n; i++) {
+                seen |= firsts[i] == pattern;
+            }
+            if (!seen) {
+                firsts[n++] = pattern;
+            }
+        }
+        this.firstBytes = Arrays.copyOf(firsts, n);
+        this.buf = new byte[Math.max(maxFrameLength + longest, 64)];
+        this.words = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Convenience constructor for text lines ended by "\r\n" or "\n".
+     *
+     * @param in stream to read
+     * @param maxLineLength longest line accepted, without the line end
+     * @return a reader for lines
+     */
+    public static DelimitedFrameReader lines(InputStream in, int maxLineLength) {
+        return new DelimitedFrameReader(in, maxLineLength,
+                new byte[]{'\r', '\n'}, new byte[]{'\n'});
+    }
+
+    /**
+     * Read the next complete frame, without its delimiter.
+     *
+     * @param b buffer for the frame
+     * @param off offset in b
+     * @param len space in b, frames that do not fit raise an exception
+     * @return length of the frame, -1 if the stream timed out before a
+     * frame was complete
+     * @throws IOException on IO error, on a frame longer than the maximum
+     * frame length, which is discarded, or if the frame does not fit
+     */
+    public int readFrame(byte[] b, int off, int len) throws IOException {
+        if ((off < 0) || (len < 0) || (off + len > b.length)) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (true) {
+            int at = find();
+            if (at >= 0) {
+                int frame = checkedLength(at);
+                int next = at + lastDelimiter.length;
+                if (frame > len) {
+                    start = scan = next;
+                    throw new IOException("Frame of " + frame + " bytes does not fit in " + len);
+                }
+                System.arraycopy(buf, start, b, off, frame);
+                start = scan = next;
+                return frame;
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Read the next complete frame into a new array.
+     *
+     * @return the frame without its delimiter, null if the stream timed out
+     * before a frame was complete
+     * @throws IOException on IO error or on a frame longer than the maximum
+     * frame length
+     */
+    public byte[] readFrame() throws IOException {
+        while (true) {
+            int at = find();
+            if (at >= 0) {
+                checkedLength(at);
+                byte[] frame = Arrays.copyOfRange(buf, start, at);
+                start = scan = at + lastDelimiter.length;
+                return frame;
+            }
+            if (!fill()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the delimiter that ended the last frame, null before the first
+     */
+    public byte[] getLastDelimiter() {
+        return lastDelimiter == null ? null : lastDelimiter.clone();
+    }
+
+    /**
+     * @return number of received bytes not yet returned as part of a frame
+     */
+    public int buffered() {
+        return end - start;
+    }
+
+    /**
+     * @return length of the frame ending at the given index
+     * @throws IOException if it is too long, the frame is then discarded
+     */
+    private int checkedLength(int at) throws IOException {
+        int frame = at - start;
+        if (frame > maxFrameLength) {
+            start = scan = at + lastDelimiter.length;
+            throw new IOException("Frame longer than " + maxFrameLength + " bytes, " + frame + " bytes discarded");
+        }
+        return frame;
+    }
+
+    /**
+     * Read more data into the buffer, making room first.
+     *
+     * @return false if the stream returned no data
+     */
+    private boolean fill() throws IOException {
+        if (end - start > maxFrameLength + longestDelimiter - 1) {
+            int dropped = end - start;
+            start = scan = end = 0;
+            throw new IOException("Frame longer than " + maxFrameLength + " bytes, " + dropped + " bytes discarded");
+        }
+        if (end == buf.length) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            scan -= start;
+            end -= start;
+            start = 0;
+        }
+        int n = in.read(buf, end, buf.length - end);
+        if (n <= 0) {
+            logger.fine("DelimitedFrameReader:fill() no data");
+            return false;
+        }
+        end += n;
+        return true;
+    }
+
+    /**
+     * Find the first complete delimiter at or after scan.
+     *
+     * @return its index, or -1 with scan moved to the first byte that may
+     * still start a delimiter
+     */
+    private int find() {
+        int pos = scan;
+        while (pos + 8 <= end) {
+            long w = words.getLong(pos);
+            long hits = 0;
+            for (long p : firstBytes) {
+                long x = w ^ p;
+                hits |= (x - ONES) & ~x & HIGHS;
+            }
+            if (hits == 0) {
+                pos += 8;
+                continue;
+            }
+            /* the lowest flag is exact, higher ones may be borrow noise */
+            pos += Long.numberOfTrailingZeros(hits) >>> 3;
+            int r = matchAt(pos);
+            if (r >= 0) {
+                return r;
+            }
+            if (r == -2) {
+                scan = pos;
+                return -1;
+            }
+            pos++;
+        }
+        for (; pos < end; pos++) {
+            int r = matchAt(pos);
+            if (r >= 0) {
+                return r;
+            }
+            if (r == -2) {
+                scan = pos;
+                return -1;
+            }
+        }
+        scan = end;
+        return -1;
+    }
+
+    /**
+     * @return pos if a delimiter ends the frame there, -1 if none can, -2
+     * if a longer delimiter might once more bytes arrive
+     */
+    private int matchAt(int pos) {
+        int avail = end - pos;
+        boolean partial = false;
+        for (byte[] d : delimiters) {
+            int n = Math.min(d.length, avail);
+            int i = 0;
+            while (i < n && buf[pos + i] == d[i]) {
+                i++;
+            }
+            if (i == d.length) {
+                if (partial) {
+                    return -2;
+                }
+                lastDelimiter = d;
+                return pos;
+            }
+            if (i == avail) {
+                partial = true;
+            }
+        }
+        return partial ? -2 : -1;
+    }
+}
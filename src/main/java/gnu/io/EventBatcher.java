@@ -0,0 +1,179 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io;
+
+import java.util.logging.Logger;
+
+/**
+ * Collects the events of a port for a <code>SerialPortBatchListener</code>
+ * and delivers them on a thread of its own.
+ *
+ * The native event loop gives no signal at the end of a pass, but it
+ * reports DATA_AVAILABLE last in a pass and then sleeps for 20 ms. A batch
+ * is therefore closed when DATA_AVAILABLE arrives, or 2 ms after its first
+ * event for passes without data. Events that come in while a batch is
+ * being delivered go into the next one, so a slow listener gets fewer,
+ * larger batches instead of holding up the event loop.
+ *
+ * @version 2.3
+ */
+final class EventBatcher implements SerialPortEventListener, Runnable {
+
+    private static final Logger logger = Logger.getLogger(EventBatcher.class.getName());
+
+    /**
+     * Longest time the first event of a batch without data waits
+     */
+    private static final long WINDOW_NANOS = 2000000L;
+
+    private final SerialPort port;
+    private final SerialPortBatchListener listener;
+    /* the batch being filled and the time of its first event, guarded by this */
+    private SerialPortEventBatch filling;
+    private long firstNanos;
+    private boolean closing = false;
+    private boolean closed = false;
+    /* used by the delivery thread only */
+    private SerialPortEventBatch delivering;
+    private Thread thread;
+
+    EventBatcher(SerialPort port, SerialPortBatchListener listener) {
+        this.port = port;
+        this.listener = listener;
+        this.filling = new SerialPortEventBatch(port);
+        this.delivering = new SerialPortEventBatch(port);
+    }
+
+    SerialPortBatchListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Events sent as objects, for instance by code that calls the listener
+     * of a port directly, end up in the batch as well.
+     */
+    @Override
+    public void serialEvent(SerialPortEvent event) {
+        add(event.getEventType(), event.getNewValue());
+    }
+
+    synchronized void add(int eventType, boolean state) {
+        if (closed) {
+            return;
+        }
+        if (filling.size() == 0) {
+            firstNanos = System.nanoTime();
+        }
+        filling.add(eventType, state);
+        if (eventType == SerialPortEvent.DATA_AVAILABLE) {
+            closing = true;
+        }
+        if (thread == null) {
+            thread = new Thread(this, "RXTX batch " + port.getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stop delivering. Events not yet delivered are dropped.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!closed && filling.size() == 0) {
+                        wait();
+                    }
+                    long left;
+                    while (!closed && !closing
+                            && (left = firstNanos + WINDOW_NANOS - System.nanoTime()) > 0) {
+                        wait(left / 1000000L, (int) (left % 1000000L));
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    SerialPortEventBatch b = filling;
+                    filling = delivering;
+                    delivering = b;
+                    closing = false;
+                }
+                deliver();
+            }
+        } catch (InterruptedException e) {
+            logger.fine("EventBatcher: interrupted");
+        }
+    }
+
+    private void deliver() {
+        try {
+            listener.serialEvents(delivering);
+        } catch (RuntimeException e) {
+            logger.fine("EventBatcher: listener failed " + e);
+        } finally {
+            delivering.clear();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Hands the events of a port to a listener through an executor, so a slow
+ * listener does not hold up the native event loop. Events go through a
+ * bounded lock-free queue, and at most one task drains it at a time, so the
+ * listener sees events one by one and in order.
+ *
+ * @version 2.3
+ */
+final class EventDispatcher implements SerialPortEventListener, Runnable {
+
+    private static final Logger logger = Logger.getLogger(EventDispatcher.class.getName());
+
+    private static final long BLOCK_MIN_NANOS = 10000L;
+    private static final long BLOCK_MAX_NANOS = 1000000L;
+
+    private final SerialPortEventListener listener;
+    private final Executor executor;
+    private final EventOverflowPolicy policy;
+    private final BoundedEventQueue<SerialPortEvent> queue;
+    /* queued events per type, for coalescing */
+    private final AtomicIntegerArray queuedByType = new AtomicIntegerArray(SerialPortEvent.BI + 1);
+    /* newest event folded into a queued event, per type, delivered in its place */
+    private final AtomicReferenceArray<SerialPortEvent> folded =
+            new AtomicReferenceArray<SerialPortEvent>(SerialPortEvent.BI + 1);
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed = false;
+
+    EventDispatcher(SerialPortEventListener listener, Executor executor,
+            int capacity, EventOverflowPolicy policy) {
+        if (listener == null || executor == null || policy == null) {
+            throw new NullPointerException();
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.listener = listener;
+        this.executor = executor;
+        this.policy = policy;
+        this.queue = new BoundedEventQueue<SerialPortEvent>(capacity);
+    }
+
+    SerialPortEventListener getListener() {
+        return listener;
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    long droppedEvents() {
+        return dropped.get();
+    }
+
+    /**
+     * Stop delivering; events still queued are discarded.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Called on the event loop thread: queue the event and make sure a
+     * drain task is on its way.
+     */
+    @Override
+    public void serialEvent(SerialPortEvent event) {
+        if (closed) {
+            return;
+        }
+        int type = event.getEventType();
+        long pause = BLOCK_MIN_NANOS;
+        while (!queue.offer(event)) {
+            switch (policy) {
+                case COALESCE:
+                    if (validType(type) && queuedByType.get(type) > 0) {
+                        SerialPortEvent older = folded.getAndSet(type, event);
+                        if (queuedByType.get(type) > 0
+                                || !folded.compareAndSet(type, event, older)) {
+                            /* the queued event, or the one it was taken as, carries it */
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                        /* the queued event was taken before it could carry it */
+                        continue;
+                    }
+                    dropOldest();
+                    break;
+                case DROP_OLDEST:
+                    dropOldest();
+                    break;
+                default:
+                    schedule();
+                    LockSupport.parkNanos(this, pause);
+                    pause = Math.min(pause * 2, BLOCK_MAX_NANOS);
+                    if (closed || Thread.currentThread().isInterrupted()) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+            }
+        }
+        if (validType(type)) {
+            queuedByType.incrementAndGet(type);
+        }
+        schedule();
+    }
+
+    /**
+     * Drain task, runs on the executor.
+     */
+    @Override
+    public void run() {
+        do {
+            SerialPortEvent e;
+            while ((e = take()) != null) {
+                if (closed) {
+                    continue;
+                }
+                try {
+                    listener.serialEvent(e);
+                } catch (RuntimeException ex) {
+                    logger.fine("EventDispatcher: listener failed " + ex);
+                }
+            }
+            scheduled.set(false);
+            /* an event queued after the last poll may have seen scheduled set */
+        } while (queue.size() > 0 && scheduled.compareAndSet(false, true));
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                logger.fine("EventDispatcher: executor rejected delivery " + e);
+                scheduled.set(false);
+            }
+        }
+    }
+
+    private void dropOldest() {
+        if (take() != null) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Poll the queue; an event that had a newer one of its type folded in
+     * is replaced by it.
+     */
+    private SerialPortEvent take() {
+        SerialPortEvent e = queue.poll();
+        if (e != null && validType(e.getEventType())) {
+            int type = e.getEventType();
+            queuedByType.decrementAndGet(type);
+            SerialPortEvent newer = folded.getAndSet(type, null);
+            if (newer != null) {
+                e = newer;
+            }
+        }
+        return e;
+    }
+
+    private static boolean validType(int type) {
+        return type >= SerialPortEvent.DATA_AVAILABLE && type <= SerialPortEvent.BI;
+    }
+}
@@ -0,0 +1,237 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Splits the input of a port into Modbus RTU frames by the silence of 3.5
+ * character times that ends each frame.
+ *
+ * The silence is computed from the baud rate, data bits, parity and stop
+ * bits of the port; above 19200 baud the fixed 1.75 ms of the Modbus
+ * serial line specification is used. Arrival times are taken with
+ * <code>System.nanoTime()</code> as each read returns, and every read
+ * waits only for what is left of the silence, so a frame is returned
+ * about one silence period after its last byte instead of after a
+ * decisecond receive timeout. The port wide receive timeout and threshold
+ * are not used or changed.
+ *
+ * Call <code>updateTiming()</code> after changing the port parameters.
+ * Not thread safe.
+ *
+ * @version 2.3
+ */
+public final class ModbusRtuReader {
+
+    private static final Logger logger = Logger.getLogger(ModbusRtuReader.class.getName());
+
+    /**
+     * Largest RTU frame, address, function, data and CRC
+     */
+    public static final int MAX_FRAME = 256;
+
+    private final RXTXPort port;
+    private final byte[] buf = new byte[MAX_FRAME];
+    private long silenceNanos;
+    private long lastByteNanos;
+
+    /**
+     * @param port open port, configured with its serial parameters
+     */
+    public ModbusRtuReader(RXTXPort port) {
+        this.port = port;
+        updateTiming();
+    }
+
+    /**
+     * Recompute the end of frame silence from the port parameters.
+     */
+    public void updateTiming() {
+        silenceNanos = silenceNanos(port.getBaudRate(), port.getDataBits(),
+                port.getStopBits(), port.getParity());
+        logger.fine("ModbusRtuReader:updateTiming() t3.5 = " + silenceNanos + " ns");
+    }
+
+    /**
+     * @return the end of frame silence in nanoseconds
+     */
+    public long getSilenceNanos() {
+        return silenceNanos;
+    }
+
+    /**
+     * @return arrival time of the last byte of the last frame, in
+     * <code>System.nanoTime()</code> terms
+     */
+    public long getLastByteNanos() {
+        return lastByteNanos;
+    }
+
+    /**
+     * 3.5 character times for the given line settings.
+     *
+     * @param baud baud rate
+     * @param dataBits SerialPort.DATABITS_ value
+     * @param stopBits SerialPort.STOPBITS_ value
+     * @param parity SerialPort.PARITY_ value
+     * @return silence in nanoseconds
+     */
+    public static long silenceNanos(int baud, int dataBits, int stopBits, int parity) {
+        if (baud > 19200 || baud <= 0) {
+            return 1750000L;
+        }
+        /* in half bits, start bit plus data plus parity plus stop */
+        int halfBits = 2 + 2 * dataBits;
+        if (parity != SerialPort.PARITY_NONE) {
+            halfBits += 2;
+        }
+        switch (stopBits) {
+            case SerialPort.STOPBITS_2:
+                halfBits += 4;
+                break;
+            case SerialPort.STOPBITS_1_5:
+                halfBits += 3;
+                break;
+            default:
+                halfBits += 2;
+        }
+        /* 3.5 characters = 7 half characters */
+        return 7L * halfBits * 1000000000L / (4L * baud);
+    }
+
+    /**
+     * Read the next frame.
+     *
+     * @param b buffer for the frame
+     * @param off offset in b
+     * @param timeout how long to wait for the first byte of the frame
+     * @param unit unit of timeout
+     * @return length of the frame, 0 if no frame started in time
+     * @throws IOException on IO error, or if the frame was longer than
+     * MAX_FRAME or b; it is discarded then
+     */
+    public int readFrame(byte[] b, int off, long timeout, TimeUnit unit) throws IOException {
+        long millis = unit.toMillis(timeout);
+        if (millis == 0 && timeout > 0) {
+            millis = 1;
+        }
+        int n = port.readAny(buf, 0, buf.length, (int) Math.min(millis, Integer.MAX_VALUE));
+        if (n <= 0) {
+            return 0;
+        }
+        lastByteNanos = System.nanoTime();
+        boolean overflow = false;
+        while (true) {
+            long left = silenceNanos - (System.nanoTime() - lastByteNanos);
+            if (left <= 0) {
+                /* the gap has passed, what is in the driver starts the next frame */
+                break;
+            }
+            int room = buf.length - n;
+            if (room == 0) {
+                overflow = true;
+                n = 0;
+                room = buf.length;
+            }
+            int r = port.readAny(buf, n, room,
+                    (int) ((left + 999999L) / 1000000L));
+            if (r <= 0) {
+                break;
+            }
+            lastByteNanos = System.nanoTime();
+            n += r;
+        }
+        if (overflow || n > b.length - off) {
+            throw new IOException("Modbus RTU frame too long, discarded");
+        }
+        System.arraycopy(buf, 0, b, off, n);
+        return n;
+    }
+
+    /**
+     * Modbus CRC-16 of a block of bytes.
+     *
+     * @param b data
+     * @param off offset in b
+     * @param len number of bytes
+     * @return the CRC, sent low byte first
+     */
+    public static int crc16(byte[] b, int off, int len) {
+        int crc = 0xFFFF;
+        for (int i = off; i < off + len; i++) {
+            crc ^= b[i] & 0xff;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * @param b frame buffer
+     * @param off offset of the frame in b
+     * @param len frame length including the CRC
+     * @return true if the frame ends in a valid CRC
+     */
+    public static boolean isValid(byte[] b, int off, int len) {
+        return len >= 4 && crc16(b, off, len) == 0;
+    }
+}
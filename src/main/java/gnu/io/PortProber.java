@@ -0,0 +1,238 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs the driver's <code>testRead</code> probes for a batch of candidate
+ * ports in parallel. Every probe gets its own deadline, counted from the
+ * moment it starts; a probe that misses it is reported as failed and its
+ * thread is replaced so that one wedged device does not stall the rest.
+ * Ports that answered are registered in the order they were added.
+ *
+ * The pool size and deadline are taken from the system properties
+ * <code>gnu.io.rxtx.ProbeThreads</code> (default 8) and
+ * <code>gnu.io.rxtx.ProbeTimeoutMillis</code> (default 2000).
+ *
+ * @version 2.3
+ */
+final class PortProber {
+
+    private static final Logger LOGGER = Logger.getLogger(PortProber.class.getName());
+    private static final int THREADS = Math.max(1, Integer.getInteger("gnu.io.rxtx.ProbeThreads", 8));
+    private static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("gnu.io.rxtx.ProbeTimeoutMillis", 2000));
+    /**
+     * Duration in nanoseconds of the last probe of each port.
+     */
+    private static final ConcurrentHashMap<String, Long> LATENCY = new ConcurrentHashMap<String, Long>();
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int EXPIRED = 3;
+
+    private final RXTXCommDriver driver;
+    private final List<Probe> probes = new ArrayList<Probe>();
+
+    PortProber(RXTXCommDriver driver) {
+        this.driver = driver;
+    }
+
+    /**
+     * @return how long the last probe of the port took in nanoseconds, or -1
+     * if it has never been probed. A probe that is still running past its
+     * deadline reports the deadline.
+     */
+    static long getLatency(String portName) {
+        Long nanos = LATENCY.get(portName);
+        return nanos == null ? -1 : nanos;
+    }
+
+    void add(String portName, int portType) {
+        probes.add(new Probe(portName, portType));
+    }
+
+    /**
+     * Probes all added ports, waits until each has answered or missed its
+     * deadline and registers the ports that answered.
+     */
+    void registerAll() {
+        if (!probes.isEmpty()) {
+            probeAll();
+        }
+        for (Probe p : probes) {
+            if (p.found) {
+                CommPortIdentifier.addPortName(p.portName, p.portType, driver);
+            }
+        }
+        probes.clear();
+    }
+
+    private void probeAll() {
+        int threads = Math.min(THREADS, probes.size());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "RXTX probe");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        try {
+            for (Probe p : probes) {
+                executor.execute(p);
+            }
+            await(executor);
+        } finally {
+            // probes past their deadline keep their thread until testRead returns
+            executor.shutdown();
+        }
+    }
+
+    private synchronized void await(ThreadPoolExecutor executor) {
+        int pending = probes.size();
+        while (pending > 0) {
+            long now = System.nanoTime();
+            long wait = Long.MAX_VALUE;
+            pending = 0;
+            for (Probe p : probes) {
+                if (p.state == RUNNING) {
+                    long left = p.started + TIMEOUT_NANOS - now;
+                    if (left <= 0) {
+                        p.state = EXPIRED;
+                        LATENCY.put(p.portName, now - p.started);
+                        LOGGER.warning("probe of " + p.portName + " did not finish within "
+                                + TimeUnit.NANOSECONDS.toMillis(TIMEOUT_NANOS) + " ms");
+                        // the wedged thread no longer counts against the pool
+                        executor.setMaximumPoolSize(executor.getMaximumPoolSize() + 1);
+                        executor.setCorePoolSize(executor.getCorePoolSize() + 1);
+                        continue;
+                    }
+                    wait = Math.min(wait, left);
+                }
+                if (p.state == QUEUED || p.state == RUNNING) {
+                    pending++;
+                }
+            }
+            if (pending > 0) {
+                try {
+                    if (wait == Long.MAX_VALUE) {
+                        wait();
+                    } else {
+                        TimeUnit.NANOSECONDS.timedWait(this, wait);
+                    }
+                } catch (InterruptedException e) {
+                    for (Probe p : probes) {
+                        if (p.state == QUEUED) {
+                            p.state = EXPIRED;
+                        }
+                    }
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private final class Probe implements Runnable {
+
+        final String portName;
+        final int portType;
+        int state = QUEUED;
+        long started;
+        boolean found;
+
+        Probe(String portName, int portType) {
+            this.portName = portName;
+            this.portType = portType;
+        }
+
+        @Override
+        public void run() {
+            synchronized (PortProber.this) {
+                if (state != QUEUED) {
+                    return;
+                }
+                state = RUNNING;
+                started = System.nanoTime();
+                PortProber.this.notifyAll();
+            }
+            boolean ok = driver.probe(portName, portType);
+            synchronized (PortProber.this) {
+                long nanos = System.nanoTime() - started;
+                LATENCY.put(portName, nanos);
+                LOGGER.fine("probe of " + portName + " took " + nanos / 1000 + " us: " + ok);
+                if (state == RUNNING) {
+                    state = DONE;
+                    found = ok;
+                }
+                PortProber.this.notifyAll();
+            }
+        }
+    }
+}
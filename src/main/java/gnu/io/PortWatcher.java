@@ -0,0 +1,205 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.logging.Logger;
+
+/**
+ * Watches the device directory for entries being created or deleted and
+ * updates the port registry for just those entries. The thread blocks in
+ * the <code>WatchService</code> (inotify on Linux) while nothing changes.
+ * When events were lost the whole registry is rescanned. A new entry is
+ * probed without the registry lock, which a probe could hold for seconds,
+ * and only added if it is still absent; a removal holds the lock, so it
+ * runs before or after a scan, never during one.
+ *
+ * @version 2.3
+ */
+final class PortWatcher implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(PortWatcher.class.getName());
+
+    private static PortWatcher running;
+
+    private final RXTXCommDriver driver;
+    private final String devicePath;
+    private final WatchService watchService;
+
+    private PortWatcher(RXTXCommDriver driver, String devicePath, WatchService watchService) {
+        this.driver = driver;
+        this.devicePath = devicePath;
+        this.watchService = watchService;
+    }
+
+    /**
+     * Starts watching unless a watcher is already running.
+     */
+    static synchronized void start() {
+        if (running != null) {
+            return;
+        }
+        WatchService ws = null;
+        try {
+            RXTXCommDriver driver = new RXTXCommDriver();
+            String dir = driver.getDevicePath();
+            ws = FileSystems.getDefault().newWatchService();
+            Paths.get(dir).register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            running = new PortWatcher(driver, dir, ws);
+        } catch (Exception e) {
+            LOGGER.warning("cannot watch the device directory for ports: " + e);
+            if (ws != null) {
+                try {
+                    ws.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+            return;
+        }
+        Thread t = new Thread(running, "RXTX port watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops the running watcher, if any.
+     */
+    static synchronized void stop() {
+        if (running != null) {
+            try {
+                running.watchService.close();
+            } catch (IOException e) {
+                // the thread exits anyway once take() fails
+            }
+            running = null;
+        }
+    }
+
+    /**
+     * An entry deleted from the device directory
+     */
+    private final class EntryRemoval implements Runnable {
+
+        private final String name;
+
+        EntryRemoval(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            LOGGER.fine("device disappeared: " + name);
+            CommPortIdentifier.removePortName(devicePath + name);
+        }
+    }
+
+    /**
+     * Probes an entry created in the device directory. The registry lock is
+     * only taken to add the port, and a name registered in the meantime is
+     * not added again.
+     */
+    private void entryCreated(String name) {
+        LOGGER.fine("device appeared: " + name);
+        if (!CommPortIdentifier.isRegistered(devicePath + name)) {
+            driver.registerPort(name);
+        }
+    }
+
+    @Override
+    public void run() {
+        LOGGER.fine("watching " + devicePath + " for ports");
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    WatchEvent.Kind<?> kind = event.kind();
+                    if (kind == StandardWatchEventKinds.OVERFLOW) {
+                        CommPortIdentifier.refresh();
+                    } else if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                        entryCreated(((Path) event.context()).toString());
+                    } else {
+                        CommPortIdentifier.update(new EntryRemoval(((Path) event.context()).toString()));
+                    }
+                }
+                if (!key.reset()) {
+                    LOGGER.warning(devicePath + " can no longer be watched for ports");
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (PortWatcher.class) {
+                if (running == this) {
+                    running = null;
+                }
+            }
+        }
+    }
+}
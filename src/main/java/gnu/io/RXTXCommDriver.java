@@ -62,13 +62,19 @@
  * known ports, and scanned ports, July 2001 */
 package gnu.io;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -95,6 +101,24 @@ public class RXTXCommDriver implements CommDriver {
 
     private native String getDeviceDirectory();
 
+    boolean probe(String dev, int type) {
+        return testRead(dev, type);
+    }
+
+    /**
+     * Returns how long the last <code>testRead</code> probe of a port took
+     * during enumeration. A probe that is still running past its deadline
+     * reports the time until the deadline.
+     *
+     * @param portName name of the port as registered
+     * @param unit unit of the returned value
+     * @return duration of the probe or -1 if the port has not been probed
+     */
+    public static long getProbeLatency(String portName, TimeUnit unit) {
+        long nanos = PortProber.getLatency(portName);
+        return nanos < 0 ? -1 : unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
     // FIXME: This method is never called.
     private final String[] getValidPortPrefixes(String CandidatePortPrefixes[]) {
         /*
@@ -148,20 +172,16 @@ public class RXTXCommDriver implements CommDriver {
     /**
      * handle solaris/sunos /dev/cua/a convention
      */
-    private void checkSolaris(String PortName, int PortType) {
+    private void checkSolaris(String PortName, int PortType, PortProber prober) {
         char p[] = {91};
         for (p[0] = 97; p[0] < 123; p[0]++) {
-            if (testRead(PortName.concat(new String(p)), PortType)) {
-                CommPortIdentifier.addPortName(PortName.concat(new String(p)), PortType, this);
-            }
+            prober.add(PortName.concat(new String(p)), PortType);
         }
         /**
          * check for 0-9 in case we have them (Solaris USB)
          */
         for (p[0] = 48; p[0] <= 57; p[0]++) {
-            if (testRead(PortName.concat(new String(p)), PortType)) {
-                CommPortIdentifier.addPortName(PortName.concat(new String(p)), PortType, this);
-            }
+            prober.add(PortName.concat(new String(p)), PortType);
         }
     }
 
@@ -199,6 +219,7 @@ public class RXTXCommDriver implements CommDriver {
         }
         /* */
 
+        PortProber prober = new PortProber(this);
         if (CandidateDeviceNames != null && ValidPortPrefixes != null) {
             for (i = 0; i < CandidateDeviceNames.length; i++) {
                 for (p = 0; p < ValidPortPrefixes.length; p++) {
@@ -242,13 +263,14 @@ public class RXTXCommDriver implements CommDriver {
                     logger.fine(CU + " " + Cl);
 
                     if (RXTXVersion.getOsName().equals("Solaris") || RXTXVersion.getOsName().equals("SunOS")) {
-                        checkSolaris(PortName, PortType);
-                    } else if (testRead(PortName, PortType)) {
-                        CommPortIdentifier.addPortName(PortName, PortType, this);
+                        checkSolaris(PortName, PortType, prober);
+                    } else {
+                        prober.add(PortName, PortType);
                     }
                 }
             }
         }
+        prober.registerAll();
 
         logger.fine("Leaving registerValidPorts()");
 
@@ -302,13 +324,11 @@ public class RXTXCommDriver implements CommDriver {
 
         logger.fine("\nRXTXCommDriver:addSpecifiedPorts()");
 
+        PortProber prober = new PortProber(this);
         while (tok.hasMoreElements()) {
-            String PortName = tok.nextToken();
-
-            if (testRead(PortName, PortType)) {
-                CommPortIdentifier.addPortName(PortName, PortType, this);
-            }
+            prober.add(tok.nextToken(), PortType);
         }
+        prober.registerAll();
     }
 
     /*
@@ -334,7 +354,8 @@ public class RXTXCommDriver implements CommDriver {
         Properties props = null;
         String file_loc = null;
         // Old style: properties file must be in JRE folder
-        String ext_dirs = System.getProperty("java.ext.dirs");
+        // java.ext.dirs is gone since Java 9
+        String ext_dirs = System.getProperty("java.ext.dirs", "");
         String[] dirArray = ext_dirs.split(System.getProperty("path.separator"));
         for (int i = 0; i < dirArray.length; i++) {
             String file_name = dirArray[i] + System.getProperty("file.separator") + "gnu.io.rxtx.properties";
@@ -424,6 +445,12 @@ public class RXTXCommDriver implements CommDriver {
     private void registerScannedPorts(int PortType) {
         String[] CandidateDeviceNames;
 
+        if (PortType == CommPortIdentifier.PORT_SERIAL
+                && RXTXVersion.getOsName().equals("Linux")
+                && registerSysfsPorts(PortType)) {
+            return;
+        }
+
         logger.fine("scanning device directory " + deviceDirectory + " for ports of type " + PortType);
 
         if (RXTXVersion.getOsName().equals("Windows CE")) {
@@ -505,6 +532,14 @@ public class RXTXCommDriver implements CommDriver {
             return;
         }
 
+        registerValidPorts(CandidateDeviceNames, getCandidatePortPrefixes(PortType), PortType);
+    }
+
+    /*
+     * The device name prefixes that are worth probing for the given port
+     * type on the running OS.
+     */
+    private String[] getCandidatePortPrefixes(int PortType) {
         String CandidatePortPrefixes[] = {};
         switch (PortType) {
             case CommPortIdentifier.PORT_SERIAL:
@@ -741,10 +776,117 @@ public class RXTXCommDriver implements CommDriver {
             default:
                 logger.fine("Unknown PortType " + PortType + " passed to RXTXCommDriver.registerScannedPorts()");
         }
-        registerValidPorts(CandidateDeviceNames, CandidatePortPrefixes, PortType);
+        return CandidatePortPrefixes;
     }
 
 
+    /*
+     * Register the serial ports the kernel knows about on Linux without
+     * opening any device node. Every entry of /sys/class/tty that has a
+     * "device" link is backed by a driver; legacy 8250 placeholders without
+     * a UART report type 0 and are skipped, as are entries without a node in
+     * the device directory. Virtual ttys such as rfcomm have no "device"
+     * link; those matching the usual prefixes are probed as before. The
+     * sysfs root can be moved with the system property
+     * gnu.io.rxtx.SysfsRoot (default /sys).
+     *
+     * Returns false when sysfs is not available so that the caller falls
+     * back to scanning the device directory.
+     */
+    private boolean registerSysfsPorts(int PortType) {
+        File tty = getSysfsTty();
+        String[] names = tty.list();
+        if (names == null || names.length == 0) {
+            logger.fine("RXTXCommDriver:registerSysfsPorts() no sysfs at " + tty);
+            return false;
+        }
+        Arrays.sort(names);
+        List<String> virtual = new ArrayList<String>();
+        for (String name : names) {
+            if (!new File(deviceDirectory + name).exists()) {
+                continue;
+            }
+            if (isSysfsSerialPort(tty, name)) {
+                logger.fine("RXTXCommDriver:registerSysfsPorts() found " + name);
+                CommPortIdentifier.addPortName(deviceDirectory + name, PortType, this);
+            } else if (isSysfsVirtualTty(tty, name)) {
+                virtual.add(name);
+            }
+        }
+        if (!virtual.isEmpty()) {
+            registerValidPorts(virtual.toArray(new String[virtual.size()]), getCandidatePortPrefixes(PortType), PortType);
+        }
+        return true;
+    }
+
+    private static File getSysfsTty() {
+        return new File(System.getProperty("gnu.io.rxtx.SysfsRoot", "/sys"), "class/tty");
+    }
+
+    private static boolean isSysfsSerialPort(File tty, String name) {
+        File entry = new File(tty, name);
+        if (!new File(entry, "device").exists()) {
+            return false;
+        }
+        if ("0".equals(readSysfsAttribute(new File(entry, "type")))) {
+            logger.fine("RXTXCommDriver:isSysfsSerialPort() skipping " + name + " without UART");
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isSysfsVirtualTty(File tty, String name) {
+        File entry = new File(tty, name);
+        return entry.isDirectory() && !new File(entry, "device").exists();
+    }
+
+    /*
+     * Register a single entry that just appeared in the device directory,
+     * using the same rules as the full scan: the sysfs check on Linux,
+     * otherwise the prefix match followed by a testRead probe. Called
+     * without the registry lock; addPortName() takes it and skips a name
+     * registered while the port was probed.
+     */
+    void registerPort(String name) {
+        String dir = getDevicePath();
+        if (RXTXVersion.getOsName().equals("Linux")) {
+            File tty = getSysfsTty();
+            if (tty.isDirectory()) {
+                if (!new File(dir + name).exists()) {
+                    return;
+                }
+                if (isSysfsSerialPort(tty, name)) {
+                    CommPortIdentifier.addPortName(dir + name, CommPortIdentifier.PORT_SERIAL, this);
+                    return;
+                }
+                if (!isSysfsVirtualTty(tty, name)) {
+                    return;
+                }
+            }
+        }
+        registerValidPorts(new String[]{name}, getCandidatePortPrefixes(CommPortIdentifier.PORT_SERIAL), CommPortIdentifier.PORT_SERIAL);
+    }
+
+    /*
+     * The directory holding the device nodes, as reported by the native
+     * library.
+     */
+    String getDevicePath() {
+        if (deviceDirectory == null) {
+            deviceDirectory = getDeviceDirectory();
+        }
+        return deviceDirectory;
+    }
+
+    private static String readSysfsAttribute(File f) {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "US-ASCII"))) {
+            String line = r.readLine();
+            return line == null ? null : line.trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     /*
      * <p>From the NullDriver.java CommAPI sample.
      */
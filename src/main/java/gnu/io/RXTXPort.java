@@ -60,7 +60,24 @@ package gnu.io;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.TooManyListenersException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 /**
@@ -115,10 +132,11 @@ final public class RXTXPort extends SerialPort {
         monThread = new MonitorThread();
         monThread.setDaemon(true);
         monThread.start();
-        waitForTheNativeCodeSilly();
+        waitForEventLoop();
         MonitorThreadAlive = true;
         //	} catch ( PortInUseException e ){}
         timeout = -1;	/* default disabled timeout */
+        receiveTimeout = -1;
 
         logger.fine("RXTXPort:RXTXPort(" + name + ") returns with fd = " + fd);
     }
@@ -127,8 +145,30 @@ final public class RXTXPort extends SerialPort {
 
 
     /* dont close the file while accessing the fd */
-    int IOLocked = 0;
-    Object IOLockedMutex = new Object();
+    final AtomicInteger IOLocked = new AtomicInteger();
+    /* set while close() waits for IOLocked to drop to zero */
+    private volatile boolean closeWaiting = false;
+
+    /**
+     * Mark the start of an I/O call, close() waits for it to finish.
+     */
+    private void ioEnter() {
+        IOLocked.incrementAndGet();
+    }
+
+    /**
+     * Mark the end of an I/O call and wake up a waiting close().
+     */
+    private void ioLeave() {
+        if (dataFlagDirty) {
+            restoreDataFlag();
+        }
+        if (IOLocked.decrementAndGet() == 0 && closeWaiting) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
 
     /**
      * File descriptor
@@ -357,10 +397,17 @@ final public class RXTXPort extends SerialPort {
     }
 
     /**
-     * Receive timeout control
+     * Receive timeout control. The native reads take their select() deadline
+     * from this field.
      */
     private int timeout;
 
+    /**
+     * The receive timeout as configured, for the reads that wait in Java
+     * rather than in the native read.
+     */
+    private volatile int receiveTimeout;
+
     /**
      * @return int the timeout
      */
@@ -385,6 +432,7 @@ final public class RXTXPort extends SerialPort {
     public void disableReceiveTimeout() {
         logger.fine("RXTXPort:disableReceiveTimeout() called");
         timeout = -1;
+        receiveTimeout = -1;
         NativeEnableReceiveTimeoutThreshold(timeout, threshold, InputBuffer);
         logger.fine("RXTXPort:disableReceiveTimeout() returning");
     }
@@ -397,6 +445,7 @@ final public class RXTXPort extends SerialPort {
         logger.fine("RXTXPort:enableReceiveTimeout() called");
         if (time >= 0) {
             timeout = time;
+            receiveTimeout = time;
             NativeEnableReceiveTimeoutThreshold(time, threshold,
                     InputBuffer);
         } else {
@@ -486,7 +535,7 @@ final public class RXTXPort extends SerialPort {
      * These are native stubs...
      */
     private int InputBuffer = 0;
-    private int OutputBuffer = 0;
+    private volatile int OutputBuffer = 0;
 
     /**
      * @param size new buffer size
@@ -500,12 +549,18 @@ final public class RXTXPort extends SerialPort {
         } else {
             InputBuffer = size;
         }
+        ReceiveBuffer rb = receiveBuffer;
+        if (rb != null && size > 0) {
+            rb.setCapacity(size);
+        }
 
         logger.fine("RXTXPort:setInputBufferSize( "
                 + size + ") returning");
     }
 
     /**
+     * @return the input buffer size, also the capacity of the receive
+     * buffer when buffered receive is enabled
      */
     public int getInputBufferSize() {
 
@@ -514,6 +569,243 @@ final public class RXTXPort extends SerialPort {
     }
 
     /**
+     * Buffered receive
+     */
+    private static final int DEFAULT_RECEIVE_BUFFER = 4096;
+
+    private volatile ReceiveBuffer receiveBuffer;
+    /**
+     * Set while the receive buffer is full and DATA_AVAILABLE is released,
+     * guarded by eventFlagLock
+     */
+    private volatile boolean receiveStalled = false;
+
+    /**
+     * Serve the input stream from a ring buffer filled by the event loop.
+     *
+     * When the event loop reports DATA_AVAILABLE it moves whatever the
+     * driver holds into the buffer with one native read per burst, before
+     * any listener is called, and reads from the input stream, including
+     * single byte reads, are then served from memory without native calls.
+     * Listeners keep being called on the event loop thread only. The buffer
+     * holds getInputBufferSize() bytes, 4 KiB when no size was set. When it
+     * is full the event loop stops taking data and it backs up in the
+     * driver until a read makes room. Receive timeout and threshold keep
+     * their meaning.
+     *
+     * The DATA_AVAILABLE notification is enabled in the native event loop
+     * while buffering is on, whatever notifyOnDataAvailable() was set to;
+     * listeners still see the event only if they asked for it.
+     */
+    public void enableReceiveBuffering() {
+        logger.fine("RXTXPort:enableReceiveBuffering() called");
+        synchronized (eventFlagLock) {
+            ReceiveBuffer rb = receiveBuffer;
+            if (rb != null && rb.isFilling()) {
+                return;
+            }
+            receiveBuffer = new ReceiveBuffer(InputBuffer > 0 ? InputBuffer : DEFAULT_RECEIVE_BUFFER);
+            receiveStalled = false;
+            acquireEvent(SerialPortEvent.DATA_AVAILABLE);
+        }
+        startEventLoop();
+    }
+
+    /**
+     * Stop buffering. Data already buffered is still returned by the input
+     * stream before it goes back to reading the port directly.
+     */
+    public void disableReceiveBuffering() {
+        synchronized (eventFlagLock) {
+            ReceiveBuffer rb = receiveBuffer;
+            if (rb == null || !rb.isFilling()) {
+                return;
+            }
+            logger.fine("RXTXPort:disableReceiveBuffering() stopping");
+            rb.stop(null);
+            if (!receiveStalled) {
+                releaseEvent(SerialPortEvent.DATA_AVAILABLE);
+            }
+            receiveStalled = false;
+        }
+    }
+
+    /**
+     * @return true if the event loop fills the receive buffer
+     */
+    public boolean isReceiveBufferingEnabled() {
+        ReceiveBuffer rb = receiveBuffer;
+        return rb != null && rb.isFilling();
+    }
+
+    /**
+     * Move what the driver holds into the receive buffer. Runs on the event
+     * loop thread, and only reads what nativeavailable() reported, so it
+     * never blocks. The native read clears and restores the DATA_AVAILABLE
+     * flag of the event loop around itself; holding eventFlagLock keeps
+     * setEventMask() from changing that flag in between.
+     */
+    private void fillReceiveBuffer() {
+        ReceiveBuffer rb = receiveBuffer;
+        if (rb == null || !rb.isFilling()) {
+            return;
+        }
+        ioEnter();
+        try {
+            synchronized (eventFlagLock) {
+                while (fd != 0) {
+                    int a = nativeavailable();
+                    if (a <= 0) {
+                        break;
+                    }
+                    int free = rb.reserve();
+                    if (free == 0) {
+                        if (rb.isFilling() && !receiveStalled) {
+                            /* stop the event loop reporting data nobody can take */
+                            receiveStalled = true;
+                            releaseEvent(SerialPortEvent.DATA_AVAILABLE);
+                        }
+                        break;
+                    }
+                    int n = readArray(rb.array(), rb.writeIndex(), Math.min(a, free));
+                    if (n <= 0) {
+                        break;
+                    }
+                    rb.commit(n, System.nanoTime());
+                }
+            }
+        } catch (IOException e) {
+            logger.fine("RXTXPort:fillReceiveBuffer() " + e);
+            synchronized (eventFlagLock) {
+                rb.stop(e);
+                if (!receiveStalled) {
+                    releaseEvent(SerialPortEvent.DATA_AVAILABLE);
+                }
+                receiveStalled = false;
+            }
+        } finally {
+            ioLeave();
+        }
+    }
+
+    /**
+     * Called after a buffered read, lets the event loop take data again once
+     * a full buffer has room.
+     */
+    private void resumeReceive(ReceiveBuffer rb) {
+        if (!receiveStalled) {
+            return;
+        }
+        synchronized (eventFlagLock) {
+            if (receiveStalled && rb == receiveBuffer && rb.isFilling() && !rb.isFull()) {
+                receiveStalled = false;
+                acquireEvent(SerialPortEvent.DATA_AVAILABLE);
+            }
+        }
+    }
+
+    /**
+     * @return the receive buffer if reads should be served from it
+     */
+    private ReceiveBuffer bufferedReceive() {
+        ReceiveBuffer rb = receiveBuffer;
+        if (rb != null && !rb.isDrained()) {
+            return rb;
+        }
+        return null;
+    }
+
+    /**
+     * Readers waiting for data. The event loop bumps dataSeq and wakes them
+     * on DATA_AVAILABLE, close() does the same. dataSeq is written under
+     * dataLock.
+     */
+    private final ReentrantLock dataLock = new ReentrantLock();
+    private final Condition dataArrived = dataLock.newCondition();
+    private volatile long dataSeq = 0;
+    private final AtomicInteger dataWaiters = new AtomicInteger();
+
+    /**
+     * Longest wait for data while no event loop runs to report it
+     */
+    private static final long DATA_POLL_NANOS = 10000000L;
+
+    /**
+     * Wake the readers waiting in awaitData().
+     */
+    private void signalData() {
+        if (dataWaiters.get() == 0) {
+            return;
+        }
+        dataLock.lock();
+        try {
+            dataSeq++;
+            dataArrived.signalAll();
+        } finally {
+            dataLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until signalData() is called after dataSeq was read as seq, the
+     * port is closed or the time is up. The caller counts itself in
+     * dataWaiters and has DATA_AVAILABLE acquired.
+     *
+     * @param seq dataSeq as read before the driver was last found empty
+     * @param nanos longest wait
+     * @throws InterruptedIOException if the thread is interrupted
+     */
+    private void awaitData(long seq, long nanos) throws InterruptedIOException {
+        if (!MonitorThreadAlive) {
+            nanos = Math.min(nanos, DATA_POLL_NANOS);
+        }
+        dataLock.lock();
+        try {
+            while (dataSeq == seq && nanos > 0 && fd != 0) {
+                nanos = dataArrived.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            dataLock.unlock();
+        }
+    }
+
+    /**
+     * Time in milliseconds buffered output may wait before it is written
+     */
+    private volatile int outputLinger = 10;
+
+    /**
+     * Set how long buffered output may wait for more bytes before it is
+     * handed to the driver. Only used when an output buffer size is set.
+     *
+     * @param millis linger time in milliseconds, 0 to hold bytes until the
+     * buffer fills or flush() is called
+     */
+    public void setOutputLinger(int millis) {
+        logger.fine("RXTXPort:setOutputLinger( " + millis + ") called");
+        if (millis < 0) {
+            throw new IllegalArgumentException(
+                    "Unexpected negative linger value"
+            );
+        }
+        outputLinger = millis;
+    }
+
+    /**
+     * @return the output linger time in milliseconds
+     */
+    public int getOutputLinger() {
+        return outputLinger;
+    }
+
+    /**
+     * Set the size of the output buffer. With a size above 1 the output
+     * stream collects writes and hands them to the driver in one native
+     * write when the buffer fills, on flush(), or once the output linger
+     * time has passed. 0 writes every call straight through.
+     *
      * @param size output buffer size
      */
     public void setOutputBufferSize(int size) {
@@ -588,6 +880,152 @@ final public class RXTXPort extends SerialPort {
      */
     public native boolean isRTS();
 
+    /**
+     * Input lines whose state follows the line events of the event loop,
+     * as ModemStatus bits
+     */
+    private volatile int trackedLines = 0;
+    /**
+     * Last reported state of the tracked lines, as ModemStatus bits
+     */
+    private final AtomicInteger lineState = new AtomicInteger();
+
+    /**
+     * Read the modem control lines from the driver, one ioctl call per line.
+     * The lines are read one after the other, not at a single instant.
+     *
+     * @return the line states
+     */
+    public ModemStatus getModemStatus() {
+        return getModemStatus(false);
+    }
+
+    /**
+     * Read the modem control lines, optionally taking input lines from the
+     * line events instead of the driver.
+     *
+     * With <code>useEvents</code> set, the input lines CTS, DSR, CD and RI
+     * whose events are enabled on a running event loop are taken from the
+     * state the event loop last reported. They cost no system call and agree
+     * with the events delivered so far, but the event loop polls every 20 to
+     * 40 ms, so they may be that much older than RTS, DTR and the other
+     * lines, which are always read from the driver. With all four line
+     * events enabled this takes two ioctl calls instead of six.
+     *
+     * @param useEvents take tracked input lines from the line events
+     * @return the line states
+     */
+    public ModemStatus getModemStatus(boolean useEvents) {
+        int tracked = useEvents ? trackedLines : 0;
+        int bits = lineState.get() & tracked;
+        if ((tracked & ModemStatus.CTS) == 0 && isCTS()) {
+            bits |= ModemStatus.CTS;
+        }
+        if ((tracked & ModemStatus.DSR) == 0 && isDSR()) {
+            bits |= ModemStatus.DSR;
+        }
+        if ((tracked & ModemStatus.CD) == 0 && isCD()) {
+            bits |= ModemStatus.CD;
+        }
+        if ((tracked & ModemStatus.RI) == 0 && isRI()) {
+            bits |= ModemStatus.RI;
+        }
+        if (isRTS()) {
+            bits |= ModemStatus.RTS;
+        }
+        if (isDTR()) {
+            bits |= ModemStatus.DTR;
+        }
+        return ModemStatus.valueOf(bits);
+    }
+
+    /**
+     * Read the modem control lines of several ports from the driver.
+     *
+     * @param ports open ports
+     * @param status receives the line states of ports[i] at status[i]
+     * @see #getModemStatus()
+     */
+    public static void getModemStatus(RXTXPort[] ports, ModemStatus[] status) {
+        getModemStatus(ports, status, false);
+    }
+
+    /**
+     * Read the modem control lines of several ports.
+     *
+     * @param ports open ports
+     * @param status receives the line states of ports[i] at status[i]
+     * @param useEvents take tracked input lines from the line events
+     * @see #getModemStatus(boolean)
+     */
+    public static void getModemStatus(RXTXPort[] ports, ModemStatus[] status,
+            boolean useEvents) {
+        if (status.length < ports.length) {
+            throw new IndexOutOfBoundsException(
+                    "Status array shorter than the port array"
+            );
+        }
+        for (int i = 0; i < ports.length; i++) {
+            status[i] = ports[i].getModemStatus(useEvents);
+        }
+    }
+
+    /**
+     * @return the ModemStatus bit of a line event, 0 for other events
+     */
+    private static int lineBit(int event) {
+        switch (event) {
+            case SerialPortEvent.CTS:
+                return ModemStatus.CTS;
+            case SerialPortEvent.DSR:
+                return ModemStatus.DSR;
+            case SerialPortEvent.CD:
+                return ModemStatus.CD;
+            case SerialPortEvent.RI:
+                return ModemStatus.RI;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Start or stop following a line through its events, reading its state
+     * once when starting. Called under eventFlagLock.
+     */
+    private void trackLine(int event, boolean enable) {
+        int bit = lineBit(event);
+        if (bit == 0) {
+            return;
+        }
+        if (!enable) {
+            trackedLines &= ~bit;
+            return;
+        }
+        boolean on;
+        switch (event) {
+            case SerialPortEvent.CTS:
+                on = isCTS();
+                break;
+            case SerialPortEvent.DSR:
+                on = isDSR();
+                break;
+            case SerialPortEvent.CD:
+                on = isCD();
+                break;
+            default:
+                on = isRI();
+        }
+        updateLine(bit, on);
+        trackedLines |= bit;
+    }
+
+    private void updateLine(int bit, boolean on) {
+        int old;
+        do {
+            old = lineState.get();
+        } while (!lineState.compareAndSet(old, on ? old | bit : old & ~bit));
+    }
+
     /**
      * Write to the port
      *
@@ -663,142 +1101,101 @@ final public class RXTXPort extends SerialPort {
     public boolean sendEvent(int event, boolean state) {
         /* Let the native side know its time to die */
 
-        if (fd == 0 || SPEventListener == null || monThread == null) {
+        if (fd == 0 || monThread == null) {
             return (true);
         }
-
-        switch (event) {
-            case SerialPortEvent.DATA_AVAILABLE:
-                logger.fine("DATA_AVAILABLE "
-                        + monThread.Data + ")");
-                break;
-            case SerialPortEvent.OUTPUT_BUFFER_EMPTY:
-                logger.fine(
-                        "OUTPUT_BUFFER_EMPTY "
-                        + monThread.Output + ")");
-                break;
-            case SerialPortEvent.CTS:
-                logger.fine("CTS "
-                        + monThread.CTS + ")");
-                break;
-            case SerialPortEvent.DSR:
-                logger.fine("DSR "
-                        + monThread.Output + ")");
-                break;
-            case SerialPortEvent.RI:
-                logger.fine("RI "
-                        + monThread.RI + ")");
-                break;
-            case SerialPortEvent.CD:
-                logger.fine("CD "
-                        + monThread.CD + ")");
-                break;
-            case SerialPortEvent.OE:
-                logger.fine("OE "
-                        + monThread.OE + ")");
-                break;
-            case SerialPortEvent.PE:
-                logger.fine("PE "
-                        + monThread.PE + ")");
-                break;
-            case SerialPortEvent.FE:
-                logger.fine("FE "
-                        + monThread.FE + ")");
-                break;
-            case SerialPortEvent.BI:
-                logger.fine("BI "
-                        + monThread.BI + ")");
-                break;
-            default:
-                logger.fine("XXXXXXXXXXXXXX "
-                        + event + ")");
-                break;
+        if (event == SerialPortEvent.DATA_AVAILABLE) {
+            /* buffer first, so listeners find the data in the stream */
+            fillReceiveBuffer();
+            signalData();
+        }
+        /* snapshots stay current while no listener is registered */
+        int line = lineBit(event);
+        if (line != 0) {
+            updateLine(line, state);
+        }
+        if (noListeners()) {
+            return (true);
         }
-        logger.fine("	checking flags ");
 
-        switch (event) {
-            case SerialPortEvent.DATA_AVAILABLE:
-                if (monThread.Data) {
-                    break;
-                }
-                return (false);
-            case SerialPortEvent.OUTPUT_BUFFER_EMPTY:
-                if (monThread.Output) {
-                    break;
-                }
-                return (false);
-            case SerialPortEvent.CTS:
-                if (monThread.CTS) {
-                    break;
-                }
-                return (false);
-            case SerialPortEvent.DSR:
-                if (monThread.DSR) {
-                    break;
-                }
-                return (false);
-            case SerialPortEvent.RI:
-                if (monThread.RI) {
-                    break;
-                }
-                return (false);
-            case SerialPortEvent.CD:
-                if (monThread.CD) {
-                    break;
-                }
-                return (false);
-            case SerialPortEvent.OE:
-                if (monThread.OE) {
-                    break;
-                }
-                return (false);
-            case SerialPortEvent.PE:
-                if (monThread.PE) {
-                    break;
-                }
-                return (false);
-            case SerialPortEvent.FE:
-                if (monThread.FE) {
-                    break;
-                }
-                return (false);
-            case SerialPortEvent.BI:
-                if (monThread.BI) {
-                    break;
-                }
-                return (false);
-            default:
-                System.err.println("unknown event: " + event);
-                return (false);
+        if (event < SerialPortEvent.DATA_AVAILABLE || event > SerialPortEvent.BI) {
+            System.err.println("unknown event: " + event);
+            return (false);
         }
-        logger.fine("	getting event");
-        SerialPortEvent e = new SerialPortEvent(this, event, !state,
-                state);
-        logger.fine("	sending event");
+        logger.fine("	checking flags " + event);
+        boolean enabled = isEventEnabled(event);
         if (monThreadisInterrupted) {
             logger.fine("	sendEvent return");
             return (true);
         }
-        if (SPEventListener != null) {
-            SPEventListener.serialEvent(e);
+        SerialPortEventListener l = enabled ? SPEventListener : null;
+        SerialPortEvent e = null;
+        if (l instanceof EventBatcher) {
+            /* batched, no event object needed */
+            ((EventBatcher) l).add(event, state);
+        } else if (l != null) {
+            logger.fine("	sending event");
+            e = new SerialPortEvent(this, event, !state, state);
+            l.serialEvent(e);
+        }
+        /* one snapshot of the listener array, no lock on this path */
+        int bit = 1 << event;
+        for (MaskedListener m : maskedListeners) {
+            if ((m.mask & bit) != 0 && (enabled || m.ownEvents)) {
+                if (e == null) {
+                    e = new SerialPortEvent(this, event, !state, state);
+                }
+                m.listener.serialEvent(e);
+            }
         }
 
         logger.fine("	sendEvent return");
 
-        if (fd == 0 || SPEventListener == null || monThread == null) {
+        if (fd == 0 || noListeners() || monThread == null) {
             return (true);
         } else {
             return (false);
         }
     }
 
+    /**
+     * A listener added next to the primary one, with the event types it
+     * wants as bits <code>1 &lt;&lt; eventType</code>
+     */
+    private static final class MaskedListener {
+
+        final SerialPortEventListener listener;
+        final int mask;
+        /* enables its events with acquireEvent(), so gets them whatever
+           the application enabled */
+        final boolean ownEvents;
+
+        MaskedListener(SerialPortEventListener listener, int mask, boolean ownEvents) {
+            this.listener = listener;
+            this.mask = mask;
+            this.ownEvents = ownEvents;
+        }
+    }
+
+    private static final MaskedListener[] NO_LISTENERS = new MaskedListener[0];
+
+    /**
+     * Copy on write, replaced under listenerLock and read without locking
+     */
+    private volatile MaskedListener[] maskedListeners = NO_LISTENERS;
+    private final Object listenerLock = new Object();
+
+    private boolean noListeners() {
+        return SPEventListener == null && maskedListeners.length == 0;
+    }
+
     /**
      * Add an event listener
      *
      * @param lsnr SerialPortEventListener
      * @throws TooManyListenersException
      */
-    boolean MonitorThreadLock = true;
+    volatile boolean MonitorThreadLock = true;
 
     public void addEventListener(
             SerialPortEventListener lsnr) throws TooManyListenersException {
@@ -811,40 +1208,247 @@ final public class RXTXPort extends SerialPort {
             throw new TooManyListenersException();
         }
         SPEventListener = lsnr;
-        if (!MonitorThreadAlive) {
-            MonitorThreadLock = true;
-            monThread = new MonitorThread();
-            monThread.setDaemon(true);
-            monThread.start();
-            waitForTheNativeCodeSilly();
-            MonitorThreadAlive = true;
-        }
+        startEventLoop();
 
         logger.fine("RXTXPort:Interrupt=false");
     }
 
+    private void startEventLoop() {
+        synchronized (listenerLock) {
+            if (!MonitorThreadAlive) {
+                MonitorThreadLock = true;
+                monThread = new MonitorThread();
+                monThread.setDaemon(true);
+                monThread.start();
+                waitForEventLoop();
+                MonitorThreadAlive = true;
+                synchronized (eventFlagLock) {
+                    /* a new native loop starts with every event disabled */
+                    nativeEventMask = 0;
+                    applyEventMask();
+                }
+            }
+        }
+    }
+
     /**
-     * Remove the serial port event listener
+     * Add one more event listener, called only for the event types in
+     * <code>eventMask</code>. Any number of such listeners can be added next
+     * to the one set by addEventListener(SerialPortEventListener). They are
+     * kept in a copy-on-write array, so dispatching takes no lock, and an
+     * event object is created only if some listener wants the event. The
+     * events still have to be enabled with the notifyOn* methods.
+     *
+     * @param lsnr SerialPortEventListener
+     * @param eventMask event types to receive, see SerialPortEvent.mask()
      */
-    public void removeEventListener() {
-
-        logger.fine("RXTXPort:removeEventListener() called");
-        waitForTheNativeCodeSilly();
-        //if( monThread != null && monThread.isAlive() )
-        if (monThreadisInterrupted == true) {
-            logger.fine("	RXTXPort:removeEventListener() already interrupted");
-            monThread = null;
-            SPEventListener = null;
-            return;
-        } else if (monThread != null && monThread.isAlive()) {
+    public void addEventListener(SerialPortEventListener lsnr, int eventMask) {
+        logger.fine("RXTXPort:addEventListener( mask " + Integer.toHexString(eventMask) + " )");
+        addMaskedListener(lsnr, eventMask, false);
+    }
 
-            logger.fine("	RXTXPort:Interrupt=true");
-            monThreadisInterrupted = true;
-            /*
-             Notify all threads in this PID that something is up
-             They will call back to see if its their thread
-             using isInterrupted().
-             */
+    /**
+     * Add a listener for a helper of the port, such as a selection key. It
+     * gets the events in <code>eventMask</code> that it enabled itself with
+     * acquireEvent(), independent of the notifyOn* settings of the
+     * application. Removed with detachEventListener().
+     */
+    void attachEventListener(SerialPortEventListener lsnr, int eventMask) {
+        logger.fine("RXTXPort:attachEventListener( mask " + Integer.toHexString(eventMask) + " )");
+        addMaskedListener(lsnr, eventMask, true);
+    }
+
+    private void addMaskedListener(SerialPortEventListener lsnr, int eventMask, boolean ownEvents) {
+        if (lsnr == null) {
+            throw new NullPointerException();
+        }
+        synchronized (listenerLock) {
+            MaskedListener[] old = maskedListeners;
+            MaskedListener[] grown = Arrays.copyOf(old, old.length + 1);
+            grown[old.length] = new MaskedListener(lsnr, eventMask, ownEvents);
+            maskedListeners = grown;
+        }
+        startEventLoop();
+    }
+
+    /**
+     * Remove a listener added with any addEventListener method, including
+     * one delivered through an executor. The event loop keeps running.
+     *
+     * @param lsnr SerialPortEventListener
+     */
+    public void removeEventListener(SerialPortEventListener lsnr) {
+        detachEventListener(lsnr);
+    }
+
+    /**
+     * Default queue capacity of executor delivered listeners
+     */
+    private static final int DEFAULT_EVENT_QUEUE = 1024;
+
+    /**
+     * Add an event listener that is called on the given executor instead of
+     * the event loop thread, through a queue of 1024 events that coalesces
+     * on overflow.
+     *
+     * @param lsnr SerialPortEventListener
+     * @param executor runs the listener
+     * @throws TooManyListenersException if the port already has a listener
+     * @see #addEventListener(SerialPortEventListener, Executor, int,
+     * EventOverflowPolicy)
+     */
+    public void addEventListener(SerialPortEventListener lsnr, Executor executor)
+            throws TooManyListenersException {
+        addEventListener(lsnr, executor, DEFAULT_EVENT_QUEUE, EventOverflowPolicy.COALESCE);
+    }
+
+    /**
+     * Add an event listener that is called on the given executor instead of
+     * the event loop thread, so a slow listener does not delay line and data
+     * detection. Events are handed over through a bounded lock-free queue
+     * and delivered one at a time, in order. When the queue is full the
+     * overflow policy decides what is lost. It takes the place of the
+     * single event listener of the port, and is removed with either
+     * removeEventListener method.
+     *
+     * @param lsnr SerialPortEventListener
+     * @param executor runs the listener
+     * @param capacity queue capacity, rounded up to a power of two
+     * @param policy what to do when the queue is full
+     * @throws TooManyListenersException if the port already has a listener
+     * @see #getEventQueueDepth()
+     * @see #getDroppedEventCount()
+     */
+    public void addEventListener(SerialPortEventListener lsnr, Executor executor,
+            int capacity, EventOverflowPolicy policy)
+            throws TooManyListenersException {
+        logger.fine("RXTXPort:addEventListener( " + policy + " )");
+        addEventListener(new EventDispatcher(lsnr, executor, capacity, policy));
+    }
+
+    /**
+     * @return number of events waiting for an executor delivered listener,
+     * 0 if there is none
+     */
+    public int getEventQueueDepth() {
+        SerialPortEventListener l = SPEventListener;
+        return l instanceof EventDispatcher ? ((EventDispatcher) l).depth() : 0;
+    }
+
+    /**
+     * @return number of events an executor delivered listener lost to
+     * overflow, 0 if there is none
+     */
+    public long getDroppedEventCount() {
+        SerialPortEventListener l = SPEventListener;
+        return l instanceof EventDispatcher ? ((EventDispatcher) l).droppedEvents() : 0;
+    }
+
+    /**
+     * Add a listener receiving the events of the port in batches, without an
+     * event object per event, on a delivery thread of its own. A batch
+     * closes when DATA_AVAILABLE arrives, which the native event loop
+     * reports last in a pass before it sleeps, or 2 ms after its first
+     * event. It takes the place of the single event listener of the port,
+     * and is removed with removeBatchListener() or removeEventListener().
+     *
+     * @param lsnr SerialPortBatchListener
+     * @throws TooManyListenersException if the port already has a listener
+     */
+    public void addBatchListener(SerialPortBatchListener lsnr)
+            throws TooManyListenersException {
+        logger.fine("RXTXPort:addBatchListener()");
+        addEventListener(new EventBatcher(this, lsnr));
+    }
+
+    /**
+     * Remove a listener added with addBatchListener() and stop its delivery
+     * thread. The event loop keeps running.
+     *
+     * @param lsnr SerialPortBatchListener
+     */
+    public void removeBatchListener(SerialPortBatchListener lsnr) {
+        logger.fine("RXTXPort:removeBatchListener()");
+        SerialPortEventListener l = SPEventListener;
+        if (l instanceof EventBatcher && ((EventBatcher) l).getListener() == lsnr) {
+            detachEventListener(l);
+        }
+    }
+
+    /**
+     * Forget a listener, primary or masked, without stopping the event
+     * loop. Used when a SerialSelectionKey is cancelled while the port stays
+     * open.
+     *
+     * @param lsnr listener to forget
+     */
+    void detachEventListener(SerialPortEventListener lsnr) {
+        logger.fine("RXTXPort:detachEventListener()");
+        SerialPortEventListener l = SPEventListener;
+        if (l == lsnr || (l instanceof EventDispatcher && ((EventDispatcher) l).getListener() == lsnr)) {
+            stopDispatcher();
+            SPEventListener = null;
+        }
+        synchronized (listenerLock) {
+            MaskedListener[] old = maskedListeners;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i].listener == lsnr) {
+                    MaskedListener[] shrunk = new MaskedListener[old.length - 1];
+                    System.arraycopy(old, 0, shrunk, 0, i);
+                    System.arraycopy(old, i + 1, shrunk, i, old.length - i - 1);
+                    maskedListeners = shrunk;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void stopDispatcher() {
+        SerialPortEventListener l = SPEventListener;
+        if (l instanceof EventDispatcher) {
+            ((EventDispatcher) l).close();
+        } else if (l instanceof EventBatcher) {
+            ((EventBatcher) l).close();
+        }
+    }
+
+    /**
+     * Remove the serial port event listener set by
+     * addEventListener(SerialPortEventListener). The event loop is stopped
+     * unless listeners added with an event mask remain or the port uses it
+     * internally, for receive buffering for example.
+     */
+    public void removeEventListener() {
+
+        logger.fine("RXTXPort:removeEventListener() called");
+        boolean inUse;
+        synchronized (eventFlagLock) {
+            inUse = acquiredEvents != 0;
+        }
+        if (maskedListeners.length > 0 || (inUse && fd != 0 && !closeLock)) {
+            /* the other listeners or the port itself still need the event loop */
+            stopDispatcher();
+            SPEventListener = null;
+            return;
+        }
+        waitForEventLoop();
+        //if( monThread != null && monThread.isAlive() )
+        if (monThreadisInterrupted == true) {
+            logger.fine("	RXTXPort:removeEventListener() already interrupted");
+            monThread = null;
+            trackedLines = 0;
+            stopDispatcher();
+            SPEventListener = null;
+            return;
+        } else if (monThread != null && monThread.isAlive()) {
+
+            logger.fine("	RXTXPort:Interrupt=true");
+            monThreadisInterrupted = true;
+            /*
+             Notify all threads in this PID that something is up
+             They will call back to see if its their thread
+             using isInterrupted().
+             */
 
             logger.fine("	RXTXPort:calling interruptEventLoop");
             interruptEventLoop();
@@ -868,6 +1472,8 @@ final public class RXTXPort extends SerialPort {
 
         }
         monThread = null;
+        trackedLines = 0;
+        stopDispatcher();
         SPEventListener = null;
         MonitorThreadLock = false;
         MonitorThreadAlive = false;
@@ -876,19 +1482,39 @@ final public class RXTXPort extends SerialPort {
     }
 
     /**
-     * Give the native code a chance to start listening to the hardware or
-     * should we say give the native code control of the issue.
-     *
-     * This is important for applications that flicker the Monitor thread while
-     * keeping the port open. In worst case test cases this loops once or twice
-     * every time.
+     * Serialises event flag changes. Reads and writes do not take it.
      */
-    protected void waitForTheNativeCodeSilly() {
+    private final Object eventFlagLock = new Object();
+
+    /**
+     * Give the native code a chance to start listening to the hardware.
+     *
+     * The native event loop clears MonitorThreadLock once it is ready for
+     * I/O, which only happens while a monitor thread is starting, so the
+     * usual cost is a single volatile read. The native side cannot signal a
+     * Java monitor; the slow path parks with a backoff from 20 us up to 1 ms
+     * and gives up if the monitor thread dies before unlocking.
+     */
+    void waitForEventLoop() {
+        if (!MonitorThreadLock) {
+            return;
+        }
+        boolean interrupted = false;
+        long pause = 20000;
         while (MonitorThreadLock) {
-            try {
-                Thread.sleep(5);
-            } catch (InterruptedException e) {
+            MonitorThread t = monThread;
+            if (t == null || !t.isAlive()) {
+                logger.fine("RXTXPort:waitForEventLoop() no running monitor thread");
+                break;
             }
+            LockSupport.parkNanos(pause);
+            if (Thread.interrupted()) {
+                interrupted = true;
+            }
+            pause = Math.min(pause * 2, 1000000);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -898,19 +1524,144 @@ final public class RXTXPort extends SerialPort {
     private native void nativeSetEventFlag(int fd, int event,
             boolean flag);
 
+    /**
+     * Enabled events as bits <code>1 &lt;&lt; eventType</code>, checked by
+     * sendEvent. Written under eventFlagLock.
+     */
+    private volatile int eventMask = 0;
+    /**
+     * Events enabled in the running native event loop, guarded by
+     * eventFlagLock
+     */
+    private int nativeEventMask = 0;
+    /**
+     * Number of internal users of each event type, and the types with at
+     * least one user as bits. Guarded by eventFlagLock.
+     */
+    private final int[] eventUsers = new int[SerialPortEvent.BI + 1];
+    private int acquiredEvents = 0;
+    /**
+     * Set when the DATA_AVAILABLE flag changed while a native read was in
+     * progress. The native read clears that flag around itself and then
+     * puts back the value it saw at its start, so the flag is passed to the
+     * native side again once the read is over.
+     */
+    private volatile boolean dataFlagDirty = false;
+
+    /**
+     * Enable exactly the events in <code>mask</code>, as if calling every
+     * notifyOn* method once. Only the events whose setting changes are
+     * passed to the native event loop, and sendEvent sees the new set as a
+     * whole. Settings made while no listener is registered are kept and
+     * applied when the event loop starts.
+     *
+     * @param mask event types as bits, see SerialPortEvent.mask()
+     */
+    public void setEventMask(int mask) {
+        logger.fine("RXTXPort:setEventMask( " + Integer.toHexString(mask) + " )");
+        mask &= SerialPortEvent.ALL_EVENTS;
+        synchronized (eventFlagLock) {
+            eventMask = mask;
+            applyEventMask();
+        }
+    }
+
+    /**
+     * Pass the events enabled by the application or used internally to the
+     * running native event loop. Called under eventFlagLock.
+     */
+    private void applyEventMask() {
+        int mask = eventMask | acquiredEvents;
+        MonitorThread t = monThread;
+        if (!MonitorThreadAlive || t == null || !t.isAlive()) {
+            return;
+        }
+        int changed = nativeEventMask ^ mask;
+        if (changed == 0) {
+            return;
+        }
+        waitForEventLoop();
+        for (int e = SerialPortEvent.DATA_AVAILABLE; e <= SerialPortEvent.BI; e++) {
+            if ((changed & (1 << e)) != 0) {
+                boolean enable = (mask & (1 << e)) != 0;
+                nativeSetEventFlag(fd, e, enable);
+                trackLine(e, enable);
+            }
+        }
+        if ((changed & (1 << SerialPortEvent.DATA_AVAILABLE)) != 0 && IOLocked.get() > 0) {
+            dataFlagDirty = true;
+        }
+        nativeEventMask = mask;
+    }
+
+    /**
+     * Have the native event loop report an event type for internal use,
+     * whatever the application enabled. Each call is paired with
+     * releaseEvent().
+     */
+    void acquireEvent(int event) {
+        synchronized (eventFlagLock) {
+            if (eventUsers[event]++ == 0) {
+                acquiredEvents |= 1 << event;
+                applyEventMask();
+            }
+        }
+    }
+
+    void releaseEvent(int event) {
+        synchronized (eventFlagLock) {
+            if (--eventUsers[event] == 0) {
+                acquiredEvents &= ~(1 << event);
+                applyEventMask();
+            }
+        }
+    }
+
+    /**
+     * Pass the DATA_AVAILABLE flag to the native side again after a native
+     * read may have put back a stale value, see dataFlagDirty.
+     */
+    private void restoreDataFlag() {
+        synchronized (eventFlagLock) {
+            if (IOLocked.get() <= 1) {
+                dataFlagDirty = false;
+            }
+            MonitorThread t = monThread;
+            if (fd != 0 && MonitorThreadAlive && t != null && t.isAlive()) {
+                int bit = 1 << SerialPortEvent.DATA_AVAILABLE;
+                nativeSetEventFlag(fd, SerialPortEvent.DATA_AVAILABLE, (nativeEventMask & bit) != 0);
+            }
+        }
+    }
+
+    /**
+     * @return the enabled events as bits <code>1 &lt;&lt; eventType</code>
+     */
+    public int getEventMask() {
+        return eventMask;
+    }
+
+    private void setEventFlag(int event, boolean enable) {
+        synchronized (eventFlagLock) {
+            int bit = 1 << event;
+            setEventMask(enable ? eventMask | bit : eventMask & ~bit);
+        }
+    }
+
+    /**
+     * @return true if the event type is enabled
+     */
+    private boolean isEventEnabled(int event) {
+        return (eventMask & (1 << event)) != 0;
+    }
+
     @Override
     public void notifyOnDataAvailable(boolean enable) {
 
         logger.fine("RXTXPort:notifyOnDataAvailable( "
                 + enable + " )");
 
-        waitForTheNativeCodeSilly();
-
-        MonitorThreadLock = true;
-        nativeSetEventFlag(fd, SerialPortEvent.DATA_AVAILABLE,
-                enable);
-        monThread.Data = enable;
-        MonitorThreadLock = false;
+        setEventFlag(SerialPortEvent.DATA_AVAILABLE, enable);
     }
 
     /**
@@ -921,12 +1672,7 @@ final public class RXTXPort extends SerialPort {
 
         logger.fine("RXTXPort:notifyOnOutputEmpty( "
                 + enable + " )");
-        waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag(fd, SerialPortEvent.OUTPUT_BUFFER_EMPTY,
-                enable);
-        monThread.Output = enable;
-        MonitorThreadLock = false;
+        setEventFlag(SerialPortEvent.OUTPUT_BUFFER_EMPTY, enable);
     }
 
     /**
@@ -937,11 +1683,7 @@ final public class RXTXPort extends SerialPort {
 
         logger.fine("RXTXPort:notifyOnCTS( "
                 + enable + " )");
-        waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag(fd, SerialPortEvent.CTS, enable);
-        monThread.CTS = enable;
-        MonitorThreadLock = false;
+        setEventFlag(SerialPortEvent.CTS, enable);
     }
 
     /**
@@ -952,11 +1694,7 @@ final public class RXTXPort extends SerialPort {
 
         logger.fine("RXTXPort:notifyOnDSR( "
                 + enable + " )");
-        waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag(fd, SerialPortEvent.DSR, enable);
-        monThread.DSR = enable;
-        MonitorThreadLock = false;
+        setEventFlag(SerialPortEvent.DSR, enable);
     }
 
     /**
@@ -967,11 +1705,7 @@ final public class RXTXPort extends SerialPort {
 
         logger.fine("RXTXPort:notifyOnRingIndicator( "
                 + enable + " )");
-        waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag(fd, SerialPortEvent.RI, enable);
-        monThread.RI = enable;
-        MonitorThreadLock = false;
+        setEventFlag(SerialPortEvent.RI, enable);
     }
 
     /**
@@ -982,11 +1716,7 @@ final public class RXTXPort extends SerialPort {
 
         logger.fine("RXTXPort:notifyOnCarrierDetect( "
                 + enable + " )");
-        waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag(fd, SerialPortEvent.CD, enable);
-        monThread.CD = enable;
-        MonitorThreadLock = false;
+        setEventFlag(SerialPortEvent.CD, enable);
     }
 
     /**
@@ -996,11 +1726,7 @@ final public class RXTXPort extends SerialPort {
     public void notifyOnOverrunError(boolean enable) {
         logger.fine("RXTXPort:notifyOnOverrunError( "
                 + enable + " )");
-        waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag(fd, SerialPortEvent.OE, enable);
-        monThread.OE = enable;
-        MonitorThreadLock = false;
+        setEventFlag(SerialPortEvent.OE, enable);
     }
 
     /**
@@ -1009,11 +1735,7 @@ final public class RXTXPort extends SerialPort {
     @Override
     public void notifyOnParityError(boolean enable) {
         logger.fine("RXTXPort:notifyOnParityError( " + enable + " )");
-        waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag(fd, SerialPortEvent.PE, enable);
-        monThread.PE = enable;
-        MonitorThreadLock = false;
+        setEventFlag(SerialPortEvent.PE, enable);
     }
 
     /**
@@ -1022,11 +1744,7 @@ final public class RXTXPort extends SerialPort {
     @Override
     public void notifyOnFramingError(boolean enable) {
         logger.fine("RXTXPort:notifyOnFramingError( " + enable + " )");
-        waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag(fd, SerialPortEvent.FE, enable);
-        monThread.FE = enable;
-        MonitorThreadLock = false;
+        setEventFlag(SerialPortEvent.FE, enable);
     }
 
     /**
@@ -1035,11 +1753,7 @@ final public class RXTXPort extends SerialPort {
     @Override
     public void notifyOnBreakInterrupt(boolean enable) {
         logger.fine("RXTXPort:notifyOnBreakInterrupt( " + enable + " )");
-        waitForTheNativeCodeSilly();
-        MonitorThreadLock = true;
-        nativeSetEventFlag(fd, SerialPortEvent.BI, enable);
-        monThread.BI = enable;
-        MonitorThreadLock = false;
+        setEventFlag(SerialPortEvent.BI, enable);
     }
 
     /**
@@ -1052,20 +1766,36 @@ final public class RXTXPort extends SerialPort {
 
     @Override
     public void close() {
+        disableReceiveBuffering();
+        shutdownAsyncWriter();
+        out.stopLinger();
+        if (fd > 0) {
+            /* outside the port lock, a writer may hold the stream lock */
+            try {
+                out.writeBuffer();
+            } catch (IOException e) {
+                logger.fine("RXTXPort:close could not write buffered output " + e);
+            }
+        }
         synchronized (this) {
 
             logger.fine("RXTXPort:close( " + this.getName() + " )");
 
-            while (IOLocked > 0) {
-                logger.fine("IO is locked " + IOLocked);
-                try {
-                    this.wait(500);
-                } catch (InterruptedException ie) {
-                    // somebody called interrupt() on us
-                    // we obbey and return without without closing the socket
-                    Thread.currentThread().interrupt();
-                    return;
+            closeWaiting = true;
+            try {
+                while (IOLocked.get() > 0) {
+                    logger.fine("IO is locked " + IOLocked.get());
+                    try {
+                        this.wait(500);
+                    } catch (InterruptedException ie) {
+                        // somebody called interrupt() on us
+                        // we obbey and return without without closing the socket
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
                 }
+            } finally {
+                closeWaiting = false;
             }
 
             // we set the closeLock after the above check because we might
@@ -1085,6 +1815,7 @@ final public class RXTXPort extends SerialPort {
 
         logger.fine("RXTXPort:close( " + this.getName() + " ) setting monThreadisInterrupted");
         if (!monThreadisInterrupted) {
+            maskedListeners = NO_LISTENERS;
             removeEventListener();
         }
 
@@ -1095,19 +1826,526 @@ final public class RXTXPort extends SerialPort {
         super.close();
         fd = 0;
         closeLock = false;
+        signalData();
+
+        logger.fine("RXTXPort:close( " + this.getName() + " ) leaving");
+    }
+
+    /**
+     * Finalize the port
+     */
+    @Override
+    protected void finalize() {
+        logger.fine("RXTXPort:finalize()");
+        if (fd > 0) {
+            logger.fine("RXTXPort:calling close()");
+            close();
+        }
+    }
+
+    /**
+     * Wait until the driver has sent everything written so far.
+     *
+     * @throws IOException on IO error
+     */
+    private void drainOutput() throws IOException {
+        ioEnter();
+        try {
+            if (fd == 0) {
+                throw new IOException();
+            }
+            waitForEventLoop();
+            /* 
+             this is probably good on all OS's but for now
+             just sendEvent from java on Sol
+             */
+            if (nativeDrain(monThreadisInterrupted)) {
+                sendEvent(SerialPortEvent.OUTPUT_BUFFER_EMPTY, true);
+            }
+        } finally {
+            ioLeave();
+        }
+    }
+
+    /**
+     * Size of the scratch arrays used to stage direct buffers
+     */
+    private static final int DIRECT_CHUNK = 8192;
+
+    /**
+     * Scratch array for direct buffers, the native write only accepts byte
+     * arrays. Guarded by itself.
+     */
+    private final byte[] directWriteScratch = new byte[DIRECT_CHUNK];
+
+    /**
+     * Write the remaining bytes of a buffer to the port.
+     *
+     * Heap buffers are handed to the native code in place, at their array
+     * offset, so nothing is allocated or copied on the Java side. Direct and
+     * read-only buffers are staged through a per port scratch array in
+     * chunks of at most 8 KiB.
+     *
+     * @param src buffer to write, its position is advanced past the written
+     * bytes
+     * @return number of bytes written
+     * @throws IOException on IO error
+     */
+    public int write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        logger.fine("RXTXPort:write(ByteBuffer " + len + ")");
+        if (len == 0 || speed == 0 || monThreadisInterrupted) {
+            return 0;
+        }
+        /* whatever the output stream still holds goes first */
+        out.writeBuffer();
+        if (src.hasArray()) {
+            writeBytes(src.array(), src.arrayOffset() + src.position(), len);
+            src.position(src.limit());
+            return len;
+        }
+        synchronized (directWriteScratch) {
+            while (src.hasRemaining()) {
+                int chunk = Math.min(src.remaining(), directWriteScratch.length);
+                src.get(directWriteScratch, 0, chunk);
+                writeBytes(directWriteScratch, 0, chunk);
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Write the remaining bytes of several buffers to the port, in order, as
+     * one native write.
+     *
+     * Useful for frames built from separate header, payload and trailer
+     * buffers: the frame is not split into separate writes on the line. The
+     * buffers are gathered into the per port scratch array, or into a
+     * temporary array when together they exceed 8 KiB. A single buffer is
+     * written as by <code>write(ByteBuffer)</code>.
+     *
+     * @param srcs buffers to write, each position is advanced past the
+     * written bytes
+     * @return number of bytes written
+     * @throws IOException on IO error
+     */
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Write the remaining bytes of a sequence of buffers to the port, in
+     * order, as one native write.
+     *
+     * @param srcs buffers to write
+     * @param offset index of the first buffer to write
+     * @param length number of buffers to write
+     * @return number of bytes written
+     * @throws IOException on IO error
+     * @see #write(ByteBuffer[])
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length)
+            throws IOException {
+        if (offset < 0 || length < 0 || offset > srcs.length - length) {
+            throw new IndexOutOfBoundsException(
+                    "Invalid offset/length passed to write"
+            );
+        }
+        if (length == 1) {
+            return write(srcs[offset]);
+        }
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += srcs[i].remaining();
+        }
+        logger.fine("RXTXPort:write(ByteBuffer[" + length + "] " + total + ")");
+        if (total == 0 || speed == 0 || monThreadisInterrupted) {
+            return 0;
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "Gathering write larger than 2 GiB"
+            );
+        }
+        int len = (int) total;
+        out.writeBuffer();
+        if (len > directWriteScratch.length) {
+            writeBytes(gather(srcs, offset, length, new byte[len]), 0, len);
+            return len;
+        }
+        synchronized (directWriteScratch) {
+            writeBytes(gather(srcs, offset, length, directWriteScratch), 0, len);
+        }
+        return len;
+    }
+
+    private static byte[] gather(ByteBuffer[] srcs, int offset, int length,
+            byte[] dst) {
+        int pos = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int n = srcs[i].remaining();
+            srcs[i].get(dst, pos, n);
+            pos += n;
+        }
+        return dst;
+    }
+
+    /**
+     * Queued asynchronous writes, guarded by itself
+     */
+    private final ArrayDeque<AsyncWrite> asyncQueue = new ArrayDeque<AsyncWrite>();
+    private AsyncWriter asyncWriter;
+    private boolean asyncClosed = false;
+
+    /**
+     * Queue a buffer to be written to the port by a writer thread.
+     *
+     * The returned future completes with the number of bytes written once
+     * they have been physically sent, that is after the driver reported its
+     * output drained, so the caller never blocks in the drain. Writes are
+     * sent in the order they were queued; writes queued while a drain is in
+     * progress are sent and drained together. The buffer must not be
+     * modified until the future completes.
+     *
+     * Futures are completed on the writer thread, dependent actions that
+     * take time should use the <code>...Async</code> variants. If the port
+     * is closed, queued writes complete exceptionally.
+     *
+     * @param src buffer to write, its position is advanced when it is sent
+     * @return future completed after the bytes are drained
+     */
+    public CompletableFuture<Integer> writeAsync(ByteBuffer src) {
+        CompletableFuture<Integer> f = new CompletableFuture<Integer>();
+        synchronized (asyncQueue) {
+            if (asyncClosed || fd == 0) {
+                f.completeExceptionally(new IOException("Port " + getName() + " is closed"));
+                return f;
+            }
+            asyncQueue.add(new AsyncWrite(src, f));
+            if (asyncWriter == null) {
+                asyncWriter = new AsyncWriter();
+                asyncWriter.setDaemon(true);
+                asyncWriter.start();
+            } else {
+                asyncQueue.notifyAll();
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Stop the writer thread and fail whatever is still queued.
+     */
+    private void shutdownAsyncWriter() {
+        AsyncWriter w;
+        List<AsyncWrite> left;
+        synchronized (asyncQueue) {
+            asyncClosed = true;
+            w = asyncWriter;
+            asyncWriter = null;
+            left = new ArrayList<AsyncWrite>(asyncQueue);
+            asyncQueue.clear();
+            asyncQueue.notifyAll();
+        }
+        IOException closed = new IOException("Port " + getName() + " is closed");
+        for (AsyncWrite aw : left) {
+            aw.future.completeExceptionally(closed);
+        }
+        if (w != null) {
+            try {
+                w.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class AsyncWrite {
+
+        final ByteBuffer src;
+        final CompletableFuture<Integer> future;
+        int written;
+        /* set when the port skipped the write */
+        IOException failure;
+
+        AsyncWrite(ByteBuffer src, CompletableFuture<Integer> future) {
+            this.src = src;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Sends queued writes and completes them once the output has drained.
+     */
+    class AsyncWriter extends Thread {
+
+        AsyncWriter() {
+            super("RXTX writer " + RXTXPort.this.getName());
+        }
+
+        @Override
+        public void run() {
+            logger.fine("RXTXPort:AsyncWriter:run()");
+            List<AsyncWrite> batch = new ArrayList<AsyncWrite>();
+            while (true) {
+                synchronized (asyncQueue) {
+                    while (asyncQueue.isEmpty() && !asyncClosed) {
+                        try {
+                            asyncQueue.wait();
+                        } catch (InterruptedException e) {
+                            abandon();
+                            return;
+                        }
+                    }
+                    if (asyncClosed) {
+                        break;
+                    }
+                    batch.addAll(asyncQueue);
+                    asyncQueue.clear();
+                }
+                try {
+                    for (AsyncWrite aw : batch) {
+                        boolean empty = !aw.src.hasRemaining();
+                        aw.written = write(aw.src);
+                        if (!empty && aw.written == 0) {
+                            /* write() drops data once the port is shutting down */
+                            aw.failure = new IOException("Port " + RXTXPort.this.getName() + " did not send the data");
+                        }
+                    }
+                    drainOutput();
+                    for (AsyncWrite aw : batch) {
+                        if (aw.failure != null) {
+                            aw.future.completeExceptionally(aw.failure);
+                        } else {
+                            aw.future.complete(aw.written);
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.fine("RXTXPort:AsyncWriter:run() " + e);
+                    for (AsyncWrite aw : batch) {
+                        aw.future.completeExceptionally(e);
+                    }
+                } catch (RuntimeException e) {
+                    for (AsyncWrite aw : batch) {
+                        aw.future.completeExceptionally(e);
+                    }
+                }
+                batch.clear();
+            }
+            logger.fine("RXTXPort:AsyncWriter:run() returns");
+        }
+
+        /**
+         * Leave after an interrupt while the port stays open: fail what is
+         * queued and let the next writeAsync() start a new writer. Called
+         * with the lock on asyncQueue held.
+         */
+        private void abandon() {
+            logger.fine("RXTXPort:AsyncWriter:run() interrupted");
+            if (asyncWriter == this) {
+                asyncWriter = null;
+            }
+            IOException stopped = new InterruptedIOException("Writer of " + RXTXPort.this.getName() + " was interrupted");
+            for (AsyncWrite aw : asyncQueue) {
+                aw.future.completeExceptionally(stopped);
+            }
+            asyncQueue.clear();
+        }
+    }
+
+    /**
+     * Thread.isVirtual(), looked up at run time. There is no JDK 21 variant
+     * of this class in a multi-release jar: the build only has a JDK 17,
+     * and the one Java 8 class serves virtual threads through this handle,
+     * readReady() and the ReentrantLock based stream and receive buffer.
+     */
+    private static final MethodHandle IS_VIRTUAL;
+
+    static {
+        MethodHandle h = null;
+        try {
+            h = MethodHandles.publicLookup().findVirtual(Thread.class,
+                    "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException e) {
+            /* before JDK 21 there are no virtual threads */
+        } catch (IllegalAccessException e) {
+            logger.fine("RXTXPort: Thread.isVirtual() not accessible " + e);
+        }
+        IS_VIRTUAL = h;
+    }
+
+    /**
+     * @return true if the calling thread is a virtual thread
+     */
+    static boolean isVirtualThread() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * Read from the port and record when the bytes arrived.
+     *
+     * Follows the timeout and threshold rules of
+     * <code>getInputStream().read(byte[], int, int)</code>. The arrival time
+     * of <code>b[off + i]</code>, in <code>System.nanoTime()</code> terms, is
+     * stored at <code>nanos[off + i]</code>; bytes that came in with the
+     * same native read share a stamp. With receive buffering enabled the
+     * stamps are taken by the event loop as it buffers the data, so they
+     * show when the data reached the JVM rather than when this call ran.
+     * Without it they are taken as the native read of this call returns.
+     * Nothing is allocated.
+     *
+     * @param b buffer to read into
+     * @param off offset in b, and in nanos
+     * @param len maximum number of bytes to read
+     * @param nanos receives the arrival times, at least off + len long
+     * @return number of bytes read
+     * @throws IOException on IO error
+     */
+    public int read(byte b[], int off, int len, long nanos[]) throws IOException {
+        return in.read(b, off, len, nanos);
+    }
+
+    /**
+     * Read from the port with a deadline for this call only.
+     *
+     * Behaves like <code>getInputStream().read(byte[], int, int)</code> with
+     * the given timeout in place of the receive timeout: it returns once
+     * the receive threshold, or with no threshold at least one byte, has
+     * arrived, or when the deadline passes. The port wide receive timeout
+     * is not changed, so no termios call is made and the deadline has
+     * millisecond rather than decisecond resolution. Deadlines below a
+     * millisecond are rounded up.
+     *
+     * @param b buffer to read into
+     * @param off offset in b
+     * @param len maximum number of bytes to read
+     * @param timeout how long to wait, 0 to read only what is already
+     * available
+     * @param unit unit of timeout
+     * @return number of bytes read, 0 on timeout
+     * @throws IOException on IO error
+     */
+    public int read(byte b[], int off, int len, long timeout, TimeUnit unit)
+            throws IOException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException(
+                    "Unexpected negative timeout value"
+            );
+        }
+        long millis = unit.toMillis(timeout);
+        if (millis == 0 && timeout > 0) {
+            millis = 1;
+        }
+        return in.readWithin(b, off, len, (int) Math.min(millis, Integer.MAX_VALUE), true);
+    }
+
+    /**
+     * Read with a per call deadline, returning on the first byte whatever
+     * the receive threshold. For framers that time the gaps between bytes.
+     *
+     * @param b buffer to read into
+     * @param off offset in b
+     * @param len maximum number of bytes to read
+     * @param millis deadline in milliseconds, 0 to read only what is there
+     * @return number of bytes read, 0 on timeout
+     * @throws IOException on IO error
+     */
+    int readAny(byte b[], int off, int len, int millis) throws IOException {
+        return in.readWithin(b, off, len, millis, false);
+    }
+
+    /**
+     * Scratch array for reads into direct buffers. Guarded by itself.
+     */
+    private final byte[] directReadScratch = new byte[DIRECT_CHUNK];
+
+    /**
+     * Read from the port into a buffer.
+     *
+     * Follows the timeout and threshold rules of
+     * <code>getInputStream().read(byte[], int, int)</code>. Heap buffers are
+     * filled in place through their backing array; direct buffers are filled
+     * through a per port scratch array, at most 8 KiB per call.
+     *
+     * @param dst buffer to read into, its position is advanced past the
+     * bytes read
+     * @return number of bytes read, 0 on timeout
+     * @throws IOException on IO error
+     * @throws ReadOnlyBufferException if dst is read-only; nothing is read
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        int len = dst.remaining();
+        logger.fine("RXTXPort:read(ByteBuffer " + len + ")");
+        if (len == 0) {
+            return 0;
+        }
+        if (dst.hasArray()) {
+            int n = in.read(dst.array(), dst.arrayOffset() + dst.position(), len);
+            if (n > 0) {
+                dst.position(dst.position() + n);
+            }
+            return n;
+        }
+        synchronized (directReadScratch) {
+            int n = in.read(directReadScratch, 0, Math.min(len, directReadScratch.length));
+            if (n > 0) {
+                dst.put(directReadScratch, 0, n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Byte channel view of this port
+     */
+    private final SerialByteChannel channel = new SerialByteChannel(this);
 
-        logger.fine("RXTXPort:close( " + this.getName() + " ) leaving");
+    /**
+     * get a ByteChannel view of the port
+     *
+     * @return channel reading and writing through this port
+     * @see gnu.io.SerialByteChannel
+     */
+    public SerialByteChannel getChannel() {
+        logger.fine("RXTXPort:getChannel() called and returning");
+        return channel;
     }
 
     /**
-     * Finalize the port
+     * @return true until the port has been closed
      */
-    @Override
-    protected void finalize() {
-        logger.fine("RXTXPort:finalize()");
-        if (fd > 0) {
-            logger.fine("RXTXPort:calling close()");
-            close();
+    boolean isPortOpen() {
+        return fd != 0;
+    }
+
+    /**
+     * Pass a slice of an array to the native write.
+     *
+     * @param b data
+     * @param off offset of the first byte to write
+     * @param len number of bytes to write
+     * @throws IOException on IO error
+     */
+    private void writeBytes(byte b[], int off, int len) throws IOException {
+        if (fd == 0) {
+            throw new IOException();
+        }
+        ioEnter();
+        try {
+            waitForEventLoop();
+            writeArray(b, off, len, monThreadisInterrupted);
+        } finally {
+            ioLeave();
         }
     }
 
@@ -1116,12 +2354,22 @@ final public class RXTXPort extends SerialPort {
      */
     class SerialOutputStream extends OutputStream {
 
+        /**
+         * Coalescing buffer, used when the output buffer size is set
+         */
+        private byte[] buf = null;
+        private int count = 0;
+        /**
+         * Writes lingering bytes out, started with the first buffered write
+         */
+        private volatile LingerFlusher flusher;
+
         /**
          * @param b
          * @throws IOException
          */
         @Override
-        public void write(int b) throws IOException {
+        public synchronized void write(int b) throws IOException {
             logger.fine("RXTXPort:SerialOutputStream:write(int)");
             if (speed == 0) {
                 return;
@@ -1129,20 +2377,28 @@ final public class RXTXPort extends SerialPort {
             if (monThreadisInterrupted == true) {
                 return;
             }
-            synchronized (IOLockedMutex) {
-                IOLocked++;
+            if (buffering()) {
+                if (count == buf.length) {
+                    writeBuffer();
+                }
+                buf[count++] = (byte) b;
+                if (count == buf.length) {
+                    writeBuffer();
+                } else {
+                    scheduleLinger();
+                }
+                return;
             }
+            ioEnter();
             try {
-                waitForTheNativeCodeSilly();
+                waitForEventLoop();
                 if (fd == 0) {
                     throw new IOException();
                 }
                 writeByte(b, monThreadisInterrupted);
                 logger.fine("Leaving RXTXPort:SerialOutputStream:write( int )");
             } finally {
-                synchronized (IOLockedMutex) {
-                    IOLocked--;
-                }
+                ioLeave();
             }
         }
 
@@ -1151,29 +2407,7 @@ final public class RXTXPort extends SerialPort {
          * @throws IOException
          */
         public void write(byte b[]) throws IOException {
-            logger.fine("Entering RXTXPort:SerialOutputStream:write(" + b.length + ") "/* + new String(b)*/);
-            if (speed == 0) {
-                return;
-            }
-            if (monThreadisInterrupted == true) {
-                return;
-            }
-            if (fd == 0) {
-                throw new IOException();
-            }
-            synchronized (IOLockedMutex) {
-                IOLocked++;
-            }
-            try {
-                waitForTheNativeCodeSilly();
-                writeArray(b, 0, b.length, monThreadisInterrupted);
-                logger.fine("Leaving RXTXPort:SerialOutputStream:write(" + b.length + ")");
-            } finally {
-                synchronized (IOLockedMutex) {
-                    IOLocked--;
-                }
-            }
-
+            write(b, 0, b.length);
         }
 
         /**
@@ -1182,7 +2416,7 @@ final public class RXTXPort extends SerialPort {
          * @param len
          * @throws IOException
          */
-        public void write(byte b[], int off, int len)
+        public synchronized void write(byte b[], int off, int len)
                 throws IOException {
             if (speed == 0) {
                 return;
@@ -1193,32 +2427,33 @@ final public class RXTXPort extends SerialPort {
                 );
             }
 
-            byte send[] = new byte[len];
-            System.arraycopy(b, off, send, 0, len);
-            logger.fine("Entering RXTXPort:SerialOutputStream:write(" + send.length + " " + off + " " + len + " " + ") " /*+  new String(send) */);
-            if (fd == 0) {
-                throw new IOException();
-            }
+            logger.fine("Entering RXTXPort:SerialOutputStream:write(" + b.length + " " + off + " " + len + " " + ") ");
             if (monThreadisInterrupted == true) {
                 return;
             }
-            synchronized (IOLockedMutex) {
-                IOLocked++;
-            }
-            try {
-                waitForTheNativeCodeSilly();
-                writeArray(send, 0, len, monThreadisInterrupted);
-                logger.fine("Leaving RXTXPort:SerialOutputStream:write(" + send.length + " " + off + " " + len + " " + ") " /*+ new String(send)*/);
-            } finally {
-                synchronized (IOLockedMutex) {
-                    IOLocked--;
+            if (buffering() && len < buf.length) {
+                if (len > buf.length - count) {
+                    writeBuffer();
+                }
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+                if (count == buf.length) {
+                    writeBuffer();
+                } else {
+                    scheduleLinger();
                 }
+                return;
             }
+            /* too large to be worth buffering, keep the order and go direct */
+            writeBuffer();
+            /* the native write honours the offset, no need to copy */
+            writeBytes(b, off, len);
+            logger.fine("Leaving RXTXPort:SerialOutputStream:write(" + b.length + " " + off + " " + len + " " + ") ");
         }
 
         /**
          */
-        public void flush() throws IOException {
+        public synchronized void flush() throws IOException {
 
             logger.fine("RXTXPort:SerialOutputStream:flush() enter");
             if (speed == 0) {
@@ -1232,24 +2467,141 @@ final public class RXTXPort extends SerialPort {
                 logger.fine("RXTXPort:SerialOutputStream:flush() Leaving Interrupted");
                 return;
             }
-            synchronized (IOLockedMutex) {
-                IOLocked++;
+            writeBuffer();
+            drainOutput();
+            logger.fine("RXTXPort:SerialOutputStream:flush() leave");
+        }
+
+        /**
+         * Hand the buffered bytes to the native write, without waiting for
+         * them to drain.
+         *
+         * @throws IOException on IO error
+         */
+        synchronized void writeBuffer() throws IOException {
+            if (count == 0) {
+                return;
             }
-            try {
-                waitForTheNativeCodeSilly();
-                /* 
-                 this is probably good on all OS's but for now
-                 just sendEvent from java on Sol
-                 */
-                if (nativeDrain(monThreadisInterrupted)) {
-                    sendEvent(SerialPortEvent.OUTPUT_BUFFER_EMPTY, true);
+            int n = count;
+            count = 0;
+            logger.fine("RXTXPort:SerialOutputStream:writeBuffer() " + n + " bytes");
+            writeBytes(buf, 0, n);
+        }
+
+        /**
+         * @return true if writes should be collected, (re)sizing the buffer
+         * to the current output buffer size
+         * @throws IOException on IO error while resizing
+         */
+        private boolean buffering() throws IOException {
+            int size = OutputBuffer;
+            if (size <= 1) {
+                writeBuffer();
+                buf = null;
+                return false;
+            }
+            if (buf == null || buf.length != size) {
+                writeBuffer();
+                buf = new byte[size];
+            }
+            return true;
+        }
+
+        /**
+         * Make sure buffered bytes go out once the linger time has passed.
+         */
+        private void scheduleLinger() {
+            int linger = outputLinger;
+            if (linger <= 0 || count == 0 || fd == 0) {
+                return;
+            }
+            LingerFlusher f = flusher;
+            if (f == null) {
+                f = new LingerFlusher();
+                f.start();
+                flusher = f;
+            }
+            f.arm(TimeUnit.MILLISECONDS.toNanos(linger));
+        }
+
+        /**
+         * Stop the linger flusher, if any, without taking the stream lock.
+         */
+        void stopLinger() {
+            LingerFlusher f = flusher;
+            if (f != null) {
+                f.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Writes the bytes collected by the output stream once the linger time
+     * has passed. One per port, because the write blocks whenever the
+     * driver does, under flow control for example, and must not hold up
+     * other ports.
+     */
+    class LingerFlusher extends Thread {
+
+        /**
+         * System.nanoTime() when the buffer is due, 0 if not armed. Guarded by
+         * this.
+         */
+        private long due = 0;
+        private boolean stopped = false;
+
+        LingerFlusher() {
+            super("RXTX linger " + RXTXPort.this.getName());
+            setDaemon(true);
+        }
+
+        /**
+         * Write the buffer out after delay, unless an earlier write is
+         * already due.
+         */
+        synchronized void arm(long delay) {
+            if (due == 0) {
+                due = System.nanoTime() + delay;
+                if (due == 0) {
+                    due = 1;
                 }
+                notify();
+            }
+        }
 
-                logger.fine("RXTXPort:SerialOutputStream:flush() leave");
-            } finally {
-                synchronized (IOLockedMutex) {
-                    IOLocked--;
+        synchronized void shutdown() {
+            stopped = true;
+            notify();
+        }
+
+        @Override
+        public void run() {
+            logger.fine("RXTXPort:LingerFlusher:run()");
+            try {
+                while (true) {
+                    synchronized (this) {
+                        while (!stopped && due == 0) {
+                            wait();
+                        }
+                        if (stopped) {
+                            return;
+                        }
+                        long left = due - System.nanoTime();
+                        if (left > 0) {
+                            TimeUnit.NANOSECONDS.timedWait(this, left);
+                            continue;
+                        }
+                        due = 0;
+                    }
+                    /* takes the stream lock, may wait for a writer */
+                    try {
+                        out.writeBuffer();
+                    } catch (IOException e) {
+                        logger.fine("RXTXPort:LingerFlusher linger flush failed " + e);
+                    }
                 }
+            } catch (InterruptedException e) {
+                logger.fine("RXTXPort:LingerFlusher:run() interrupted");
             }
         }
     }
@@ -1259,6 +2611,85 @@ final public class RXTXPort extends SerialPort {
      */
     class SerialInputStream extends InputStream {
 
+        /**
+         * Serialises readers. A lock rather than a monitor, so that virtual
+         * threads waiting for it park instead of pinning their carrier.
+         */
+        private final ReentrantLock readLock = new ReentrantLock();
+
+        /**
+         * Scratch array of read() for virtual threads, guarded by readLock
+         */
+        private final byte[] one = new byte[1];
+
+        /**
+         * Read what the driver holds and, while fewer than minimum bytes are
+         * in, wait for the event loop to report more until the deadline.
+         * The native read is only asked for bytes that are already there,
+         * so it never blocks and the receive timeout of the port is not
+         * used. DATA_AVAILABLE is acquired for the time of the wait only.
+         *
+         * @param b[]
+         * @param off
+         * @param len
+         * @param minimum number of bytes to wait for
+         * @param millis timeout in milliseconds, 0 to take only what is
+         * there, negative to wait forever
+         * @return number of bytes read, less than minimum on timeout
+         * @throws IOException
+         */
+        private int readReady(byte b[], int off, int len, int minimum, int millis) throws IOException {
+            long deadline = System.nanoTime() + millis * 1000000L;
+            int got = 0;
+            boolean waiting = false;
+            try {
+                while (true) {
+                    long seq = dataSeq;
+                    int a;
+                    ioEnter();
+                    try {
+                        if (fd == 0) {
+                            throw new IOException();
+                        }
+                        waitForEventLoop();
+                        a = nativeavailable();
+                        if (a > 0) {
+                            got += readArray(b, off + got, Math.min(a, len - got));
+                        }
+                    } finally {
+                        ioLeave();
+                    }
+                    if (got >= minimum || got == len) {
+                        return got;
+                    }
+                    long left = millis < 0 ? Long.MAX_VALUE : deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return got;
+                    }
+                    if (!waiting) {
+                        /* bytes that came in before the event was enabled go unreported */
+                        waiting = true;
+                        dataWaiters.incrementAndGet();
+                        acquireEvent(SerialPortEvent.DATA_AVAILABLE);
+                        startEventLoop();
+                    } else if (a == 0) {
+                        /* the native read hides arrivals during itself, so only wait on an empty driver */
+                        try {
+                            awaitData(seq, left);
+                        } catch (InterruptedIOException e) {
+                            e.bytesTransferred = got;
+                            throw e;
+                        }
+                    }
+                }
+            } finally {
+                if (waiting) {
+                    releaseEvent(SerialPortEvent.DATA_AVAILABLE);
+                    dataWaiters.decrementAndGet();
+                }
+            }
+        }
+
         /**
          * @return int the int read
          * @throws IOException
@@ -1272,28 +2703,38 @@ final public class RXTXPort extends SerialPort {
          * a role. 0 >0 Blocks until 1 byte, magnitude of threshold doesn't play
          * a role
          */
-        public synchronized int read() throws IOException {
-            logger.fine("RXTXPort:SerialInputStream:read() called");
-            if (fd == 0) {
-                throw new IOException();
-            }
-            if (monThreadisInterrupted) {
-                logger.fine("+++++++++ read() monThreadisInterrupted");
-            }
-            synchronized (IOLockedMutex) {
-                IOLocked++;
-            }
+        public int read() throws IOException {
+            readLock.lock();
             try {
-                logger.fine("RXTXPort:SerialInputStream:read() L");
-                waitForTheNativeCodeSilly();
-                logger.fine("RXTXPort:SerialInputStream:read() N");
-                int result = readByte();
-                logger.fine("RXTXPort:SerialInputStream:read() returns");
-                return (result);
-            } finally {
-                synchronized (IOLockedMutex) {
-                    IOLocked--;
+                logger.fine("RXTXPort:SerialInputStream:read() called");
+                if (fd == 0) {
+                    throw new IOException();
+                }
+                if (monThreadisInterrupted) {
+                    logger.fine("+++++++++ read() monThreadisInterrupted");
+                }
+                ReceiveBuffer rb = bufferedReceive();
+                if (rb != null) {
+                    int n = rb.read(receiveTimeout);
+                    resumeReceive(rb);
+                    return n;
                 }
+                if (isVirtualThread()) {
+                    return readReady(one, 0, 1, 1, receiveTimeout) == 1 ? one[0] & 0xff : -1;
+                }
+                ioEnter();
+                try {
+                    logger.fine("RXTXPort:SerialInputStream:read() L");
+                    waitForEventLoop();
+                    logger.fine("RXTXPort:SerialInputStream:read() N");
+                    int result = readByte();
+                    logger.fine("RXTXPort:SerialInputStream:read() returns");
+                    return (result);
+                } finally {
+                    ioLeave();
+                }
+            } finally {
+                readLock.unlock();
             }
         }
 
@@ -1309,24 +2750,20 @@ final public class RXTXPort extends SerialPort {
          * threshold bytes, returns 0 on timeout 0 >0 blocks until reads
          * threshold bytes
          */
-        public synchronized int read(byte b[]) throws IOException {
-            int result;
-            logger.fine("RXTXPort:SerialInputStream:read(" + b.length + ") called");
-            if (monThreadisInterrupted == true) {
-                return (0);
-            }
-            synchronized (IOLockedMutex) {
-                IOLocked++;
-            }
+        public int read(byte b[]) throws IOException {
+            readLock.lock();
             try {
-                waitForTheNativeCodeSilly();
+                int result;
+                logger.fine("RXTXPort:SerialInputStream:read(" + b.length + ") called");
+                if (monThreadisInterrupted == true) {
+                    return (0);
+                }
+                /* read(byte[], int, int) marks its own native calls */
                 result = read(b, 0, b.length);
                 logger.fine("RXTXPort:SerialInputStream:read() returned " + result + " bytes");
                 return (result);
             } finally {
-                synchronized (IOLockedMutex) {
-                    IOLocked--;
-                }
+                readLock.unlock();
             }
         }
         /*
@@ -1349,79 +2786,172 @@ final public class RXTXPort extends SerialPort {
          * threshold # of bytes or len bytes, whichever was lower.
          */
         @Override
-        public synchronized int read(byte b[], int off, int len) throws IOException {
-            if (b == null) {
-                logger.fine("+++++++ NullPointerException()\n");
-                logger.fine("RXTXPort:SerialInputStream:read() b == 0");
-                throw new NullPointerException();
-            }
-            logger.fine("RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") called" /*+ new String(b) */);
-            int result;
-            /*
-             * Some sanity checks
-             */
-            if (fd == 0) {
-                logger.fine("RXTXPort:SerialInputStream:read() fd == 0");
-                logger.fine("+++++++ IOException()\n");
-                throw new IOException();
-            }
-
-            if ((off < 0) || (len < 0) || (off + len > b.length)) {
-                logger.fine("+++++++ IndexOutOfBoundsException()\n");
-                logger.fine("RXTXPort:SerialInputStream:read() off < 0 ..");
-                throw new IndexOutOfBoundsException();
-            }
+        public int read(byte b[], int off, int len) throws IOException {
+            readLock.lock();
+            try {
+                if (b == null) {
+                    logger.fine("+++++++ NullPointerException()\n");
+                    logger.fine("RXTXPort:SerialInputStream:read() b == 0");
+                    throw new NullPointerException();
+                }
+                logger.fine("RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") called" /*+ new String(b) */);
+                int result;
+                /*
+                 * Some sanity checks
+                 */
+                if (fd == 0) {
+                    logger.fine("RXTXPort:SerialInputStream:read() fd == 0");
+                    logger.fine("+++++++ IOException()\n");
+                    throw new IOException();
+                }
 
-            /*
-             * Return immediately if len==0
-             */
-            if (len == 0) {
-                logger.fine("RXTXPort:SerialInputStream:read() off < 0 ..");
-                return 0;
-            }
-            /*
-             * See how many bytes we should read
-             */
-            int Minimum = len;
+                if ((off < 0) || (len < 0) || (off + len > b.length)) {
+                    logger.fine("+++++++ IndexOutOfBoundsException()\n");
+                    logger.fine("RXTXPort:SerialInputStream:read() off < 0 ..");
+                    throw new IndexOutOfBoundsException();
+                }
 
-            if (threshold == 0) {
                 /*
-                 * If threshold is disabled, read should return as soon
-                 * as data are available (up to the amount of available
-                 * bytes in order to avoid blocking)
-                 * Read may return earlier depending of the receive time
-                 * out.
+                 * Return immediately if len==0
                  */
-                int a = nativeavailable();
-                if (a == 0) {
-                    Minimum = 1;
-                } else {
-                    Minimum = Math.min(Minimum, a);
+                if (len == 0) {
+                    logger.fine("RXTXPort:SerialInputStream:read() off < 0 ..");
+                    return 0;
+                }
+                ReceiveBuffer rb = bufferedReceive();
+                if (rb != null) {
+                    int n = rb.read(b, off, len, threshold == 0 ? 1 : Math.min(len, threshold), receiveTimeout);
+                    resumeReceive(rb);
+                    return n;
                 }
-            } else {
                 /*
-                 * Threshold is enabled. Read should return when
-                 * 'threshold' bytes have been received (or when the
-                 * receive timeout expired)
+                 * See how many bytes we should read
                  */
-                Minimum = Math.min(Minimum, threshold);
-            }
-            if (monThreadisInterrupted == true) {
-                logger.fine("RXTXPort:SerialInputStream:read() Interrupted");
-                return (0);
+                int Minimum = len;
+
+                if (threshold == 0) {
+                    /*
+                     * If threshold is disabled, read should return as soon
+                     * as data are available (up to the amount of available
+                     * bytes in order to avoid blocking)
+                     * Read may return earlier depending of the receive time
+                     * out.
+                     */
+                    int a = nativeavailable();
+                    if (a == 0) {
+                        Minimum = 1;
+                    } else {
+                        Minimum = Math.min(Minimum, a);
+                    }
+                } else {
+                    /*
+                     * Threshold is enabled. Read should return when
+                     * 'threshold' bytes have been received (or when the
+                     * receive timeout expired)
+                     */
+                    Minimum = Math.min(Minimum, threshold);
+                }
+                if (monThreadisInterrupted == true) {
+                    logger.fine("RXTXPort:SerialInputStream:read() Interrupted");
+                    return (0);
+                }
+                if (isVirtualThread()) {
+                    return readReady(b, off, len, Minimum, receiveTimeout);
+                }
+                ioEnter();
+                try {
+                    waitForEventLoop();
+                    result = readArray(b, off, Minimum);
+                    logger.fine("RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") returned " + result + " bytes" /*+ new String(b) */);
+                    return (result);
+                } finally {
+                    ioLeave();
+                }
+            } finally {
+                readLock.unlock();
             }
-            synchronized (IOLockedMutex) {
-                IOLocked++;
+        }
+
+        /**
+         * Read like read(byte[], int, int), storing the arrival time of each
+         * byte at the same index in nanos.
+         *
+         * @param b[]
+         * @param off
+         * @param len
+         * @param nanos[]
+         * @return int number of bytes read
+         * @throws IOException
+         */
+        int read(byte b[], int off, int len, long nanos[]) throws IOException {
+            readLock.lock();
+            try {
+                if (nanos.length < off + len) {
+                    throw new IndexOutOfBoundsException(
+                            "Timestamp array shorter than the data"
+                    );
+                }
+                ReceiveBuffer rb = bufferedReceive();
+                if (rb != null && len > 0 && off >= 0 && off + len <= b.length) {
+                    int n = rb.read(b, off, len, threshold == 0 ? 1 : Math.min(len, threshold), receiveTimeout, nanos);
+                    resumeReceive(rb);
+                    return n;
+                }
+                int n = read(b, off, len);
+                if (n > 0) {
+                    Arrays.fill(nanos, off, off + n, System.nanoTime());
+                }
+                return n;
+            } finally {
+                readLock.unlock();
             }
+        }
+
+        /**
+         * Read with a deadline of its own, leaving the receive timeout and
+         * the termios settings of the port untouched.
+         *
+         * @param b[]
+         * @param off
+         * @param len
+         * @param millis deadline in milliseconds, 0 to take only what is
+         * already there
+         * @param useThreshold false to return on the first byte whatever the
+         * receive threshold
+         * @return int number of bytes read, 0 on timeout
+         * @throws IOException
+         */
+        int readWithin(byte b[], int off, int len, int millis, boolean useThreshold) throws IOException {
+            readLock.lock();
             try {
-                waitForTheNativeCodeSilly();
-                result = readArray(b, off, Minimum);
-                logger.fine("RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") returned " + result + " bytes" /*+ new String(b) */);
+                if (b == null) {
+                    throw new NullPointerException();
+                }
+                logger.fine("RXTXPort:SerialInputStream:readWithin(" + b.length + " " + off + " " + len + " " + millis + ") called");
+                if (fd == 0) {
+                    throw new IOException();
+                }
+                if ((off < 0) || (len < 0) || (off + len > b.length)) {
+                    throw new IndexOutOfBoundsException();
+                }
+                if (len == 0) {
+                    return 0;
+                }
+                int Minimum = threshold == 0 || !useThreshold ? 1 : Math.min(len, threshold);
+                ReceiveBuffer rb = bufferedReceive();
+                if (rb != null) {
+                    int n = rb.read(b, off, len, millis == 0 ? len : Minimum, millis);
+                    resumeReceive(rb);
+                    return n;
+                }
+                if (monThreadisInterrupted == true) {
+                    return (0);
+                }
+                int result = readReady(b, off, len, millis == 0 ? len : Minimum, millis);
+                logger.fine("RXTXPort:SerialInputStream:readWithin() returned " + result + " bytes");
                 return (result);
             } finally {
-                synchronized (IOLockedMutex) {
-                    IOLocked--;
-                }
+                readLock.unlock();
             }
         }
 
@@ -1440,79 +2970,86 @@ final public class RXTXPort extends SerialPort {
          * will contain the terminator. Otherwise read behavior should be the
          * same as read( b[], off, len ). Timeouts have not been well tested.
          */
-        public synchronized int read(byte b[], int off, int len, byte t[]) throws IOException {
-            if (b == null) {
-                logger.fine("+++++++ NullPointerException()\n");
-                logger.fine("RXTXPort:SerialInputStream:read() b == 0");
-                throw new NullPointerException();
-            }
-            logger.fine("RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") called" /*+ new String(b) */);
-            int result;
-            /*
-             * Some sanity checks
-             */
-            if (fd == 0) {
-                logger.fine("RXTXPort:SerialInputStream:read() fd == 0");
-                logger.fine("+++++++ IOException()\n");
-                throw new IOException();
-            }
-
-            if ((off < 0) || (len < 0) || (off + len > b.length)) {
-                logger.fine("+++++++ IndexOutOfBoundsException()\n");
-                logger.fine("RXTXPort:SerialInputStream:read() off < 0 ..");
-                throw new IndexOutOfBoundsException();
-            }
+        public int read(byte b[], int off, int len, byte t[]) throws IOException {
+            readLock.lock();
+            try {
+                if (b == null) {
+                    logger.fine("+++++++ NullPointerException()\n");
+                    logger.fine("RXTXPort:SerialInputStream:read() b == 0");
+                    throw new NullPointerException();
+                }
+                logger.fine("RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") called" /*+ new String(b) */);
+                int result;
+                /*
+                 * Some sanity checks
+                 */
+                if (fd == 0) {
+                    logger.fine("RXTXPort:SerialInputStream:read() fd == 0");
+                    logger.fine("+++++++ IOException()\n");
+                    throw new IOException();
+                }
 
-            /*
-             * Return immediately if len==0
-             */
-            if (len == 0) {
-                logger.fine("RXTXPort:SerialInputStream:read() off < 0 ..");
-                return 0;
-            }
-            /*
-             * See how many bytes we should read
-             */
-            int Minimum = len;
+                if ((off < 0) || (len < 0) || (off + len > b.length)) {
+                    logger.fine("+++++++ IndexOutOfBoundsException()\n");
+                    logger.fine("RXTXPort:SerialInputStream:read() off < 0 ..");
+                    throw new IndexOutOfBoundsException();
+                }
 
-            if (threshold == 0) {
                 /*
-                 * If threshold is disabled, read should return as soon
-                 * as data are available (up to the amount of available
-                 * bytes in order to avoid blocking)
-                 * Read may return earlier depending of the receive time
-                 * out.
+                 * Return immediately if len==0
                  */
-                int a = nativeavailable();
-                if (a == 0) {
-                    Minimum = 1;
-                } else {
-                    Minimum = Math.min(Minimum, a);
+                if (len == 0) {
+                    logger.fine("RXTXPort:SerialInputStream:read() off < 0 ..");
+                    return 0;
+                }
+                ReceiveBuffer rb = bufferedReceive();
+                if (rb != null) {
+                    int n = rb.readTerminated(b, off, len, t, receiveTimeout);
+                    resumeReceive(rb);
+                    return n;
                 }
-            } else {
                 /*
-                 * Threshold is enabled. Read should return when
-                 * 'threshold' bytes have been received (or when the
-                 * receive timeout expired)
+                 * See how many bytes we should read
                  */
-                Minimum = Math.min(Minimum, threshold);
-            }
-            if (monThreadisInterrupted == true) {
-                logger.fine("RXTXPort:SerialInputStream:read() Interrupted");
-                return (0);
-            }
-            synchronized (IOLockedMutex) {
-                IOLocked++;
-            }
-            try {
-                waitForTheNativeCodeSilly();
-                result = readTerminatedArray(b, off, Minimum, t);
-                logger.fine("RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") returned " + result + " bytes" /*+ new String(b) */);
-                return (result);
-            } finally {
-                synchronized (IOLockedMutex) {
-                    IOLocked--;
+                int Minimum = len;
+
+                if (threshold == 0) {
+                    /*
+                     * If threshold is disabled, read should return as soon
+                     * as data are available (up to the amount of available
+                     * bytes in order to avoid blocking)
+                     * Read may return earlier depending of the receive time
+                     * out.
+                     */
+                    int a = nativeavailable();
+                    if (a == 0) {
+                        Minimum = 1;
+                    } else {
+                        Minimum = Math.min(Minimum, a);
+                    }
+                } else {
+                    /*
+                     * Threshold is enabled. Read should return when
+                     * 'threshold' bytes have been received (or when the
+                     * receive timeout expired)
+                     */
+                    Minimum = Math.min(Minimum, threshold);
+                }
+                if (monThreadisInterrupted == true) {
+                    logger.fine("RXTXPort:SerialInputStream:read() Interrupted");
+                    return (0);
+                }
+                ioEnter();
+                try {
+                    waitForEventLoop();
+                    result = readTerminatedArray(b, off, Minimum, t);
+                    logger.fine("RXTXPort:SerialInputStream:read(" + b.length + " " + off + " " + len + ") returned " + result + " bytes" /*+ new String(b) */);
+                    return (result);
+                } finally {
+                    ioLeave();
                 }
+            } finally {
+                readLock.unlock();
             }
         }
 
@@ -1520,22 +3057,27 @@ final public class RXTXPort extends SerialPort {
          * @return int bytes available
          * @throws IOException
          */
-        public synchronized int available() throws IOException {
-            if (monThreadisInterrupted == true) {
-                return (0);
-            }
-            logger.fine("RXTXPort:available() called");
-            synchronized (IOLockedMutex) {
-                IOLocked++;
-            }
+        public int available() throws IOException {
+            readLock.lock();
             try {
-                int r = nativeavailable();
-                logger.fine("RXTXPort:available() returning " + r);
-                return r;
-            } finally {
-                synchronized (IOLockedMutex) {
-                    IOLocked--;
+                if (monThreadisInterrupted == true) {
+                    return (0);
+                }
+                logger.fine("RXTXPort:available() called");
+                ReceiveBuffer rb = bufferedReceive();
+                if (rb != null) {
+                    return rb.available();
+                }
+                ioEnter();
+                try {
+                    int r = nativeavailable();
+                    logger.fine("RXTXPort:available() returning " + r);
+                    return r;
+                } finally {
+                    ioLeave();
                 }
+            } finally {
+                readLock.unlock();
             }
         }
     }
@@ -1544,22 +3086,6 @@ final public class RXTXPort extends SerialPort {
      */
     class MonitorThread extends Thread {
 
-        /**
-         * Note: these have to be separate boolean flags because the
-         * SerialPortEvent constants are NOT bit-flags, they are just defined as
-         * integers from 1 to 10 -DPL
-         */
-        private volatile boolean CTS = false;
-        private volatile boolean DSR = false;
-        private volatile boolean RI = false;
-        private volatile boolean CD = false;
-        private volatile boolean OE = false;
-        private volatile boolean PE = false;
-        private volatile boolean FE = false;
-        private volatile boolean BI = false;
-        private volatile boolean Data = false;
-        private volatile boolean Output = false;
-
         /**
          * run the thread and call the event loop.
          */
@@ -0,0 +1,456 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ring buffer between the event loop of a <code>RXTXPort</code> and its
+ * input stream.
+ *
+ * There is a single producer, the event loop thread. It reserves the
+ * contiguous free region at the write index, lets the native read fill the
+ * backing array in place without holding the lock, and then commits the
+ * bytes. Readers copy out under the lock and never touch native code. The
+ * lock is a ReentrantLock rather than a monitor, so a virtual thread
+ * waiting for data parks instead of pinning its carrier.
+ *
+ * The buffer lives on the heap on purpose: the native read only fills byte
+ * arrays, so an off heap buffer would cost one more copy.
+ *
+ * Each committed chunk is stamped with the time its native read returned.
+ * The stamps are kept per chunk in two parallel long arrays, as the byte
+ * count where the chunk ends and its time. When more chunks are buffered
+ * than there are records, the two oldest records are merged under the
+ * later stamp, so the newest chunks always keep their own stamps.
+ *
+ * @version 2.3
+ */
+final class ReceiveBuffer {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition arrived = lock.newCondition();
+    private byte[] buf;
+    private int readIndex = 0;
+    private int count = 0;
+    /**
+     * Capacity to switch to at the next reserve(), 0 if none
+     */
+    private int pendingCapacity = 0;
+    private boolean filling = true;
+    private IOException failure;
+
+    private static final int STAMP_RECORDS = 256;
+    /* total bytes committed and consumed since the start */
+    private long committed = 0;
+    private long consumed = 0;
+    private final long[] stampEnd = new long[STAMP_RECORDS];
+    private final long[] stampNanos = new long[STAMP_RECORDS];
+    private int stampHead = 0;
+    private int stampCount = 0;
+
+    ReceiveBuffer(int capacity) {
+        buf = new byte[capacity];
+    }
+
+    /**
+     * Resize the buffer. Applied by the producer between two native reads so
+     * it never races with a read in progress.
+     *
+     * @param capacity new capacity in bytes
+     */
+    void setCapacity(int capacity) {
+        lock.lock();
+        try {
+            pendingCapacity = capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int capacity() {
+        lock.lock();
+        try {
+            return buf.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int available() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true until the buffer has been stopped
+     */
+    boolean isFilling() {
+        lock.lock();
+        try {
+            return filling;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isFull() {
+        lock.lock();
+        try {
+            return count == buf.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true once the buffer has been stopped and everything left in
+     * it, including a failure, has been handed to readers
+     */
+    boolean isDrained() {
+        lock.lock();
+        try {
+            return !filling && count == 0 && failure == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Producer side: return the size of the contiguous free region that
+     * starts at <code>writeIndex()</code>. Never waits.
+     *
+     * @return free contiguous bytes, 0 when the buffer is full or stopped
+     */
+    int reserve() {
+        lock.lock();
+        try {
+            if (pendingCapacity > 0 && pendingCapacity != buf.length && count <= pendingCapacity) {
+                byte[] resized = new byte[pendingCapacity];
+                copyOut(resized, 0, count);
+                buf = resized;
+                readIndex = 0;
+                pendingCapacity = 0;
+            }
+            if (!filling || count == buf.length) {
+                return 0;
+            }
+            int w = writeIndex();
+            return w >= readIndex && count < buf.length
+                    ? buf.length - w
+                    : readIndex - w;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the backing array, stable between reserve() and commit()
+     */
+    byte[] array() {
+        lock.lock();
+        try {
+            return buf;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int writeIndex() {
+        lock.lock();
+        try {
+            int w = readIndex + count;
+            return w >= buf.length ? w - buf.length : w;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Producer side: publish bytes the native read stored at
+     * <code>writeIndex()</code>.
+     *
+     * @param n number of bytes
+     * @param nanos System.nanoTime() when the native read returned
+     */
+    void commit(int n, long nanos) {
+        lock.lock();
+        try {
+            count += n;
+            committed += n;
+            if (stampCount == STAMP_RECORDS) {
+                /* the second oldest record now starts where the oldest did */
+                stampHead = (stampHead + 1) % STAMP_RECORDS;
+                stampCount--;
+            }
+            int i = (stampHead + stampCount++) % STAMP_RECORDS;
+            stampEnd[i] = committed;
+            stampNanos[i] = nanos;
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting data. Readers drain what is left without blocking.
+     *
+     * @param cause the error that stopped the producer, null on a normal stop
+     */
+    void stop(IOException cause) {
+        lock.lock();
+        try {
+            filling = false;
+            if (cause != null && failure == null) {
+                failure = cause;
+            }
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read one byte.
+     *
+     * @param timeout milliseconds to wait, negative to wait forever
+     * @return the byte or -1 on timeout
+     * @throws IOException when the producer failed and no data is left
+     * @throws InterruptedIOException when interrupted while waiting
+     */
+    int read(int timeout) throws IOException {
+        lock.lock();
+        try {
+            if (!await(1, timeout)) {
+                return -1;
+            }
+            int b = buf[readIndex] & 0xff;
+            consume(1);
+            return b;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read up to <code>len</code> bytes, waiting until at least
+     * <code>minimum</code> are buffered or the timeout expires.
+     *
+     * @param b destination
+     * @param off offset in b
+     * @param len maximum number of bytes
+     * @param minimum number of bytes to wait for
+     * @param timeout milliseconds to wait, negative to wait forever
+     * @return number of bytes copied, 0 on timeout
+     * @throws IOException when the producer failed and no data is left
+     */
+    int read(byte b[], int off, int len, int minimum, int timeout) throws IOException {
+        lock.lock();
+        try {
+            await(minimum, timeout);
+            int n = Math.min(len, count);
+            copyOut(b, off, n);
+            consume(n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read like <code>read(byte[], int, int, int, int)</code>, also storing
+     * the arrival time of each byte read.
+     *
+     * @param b destination
+     * @param off offset in b
+     * @param len maximum number of bytes
+     * @param minimum number of bytes to wait for
+     * @param timeout milliseconds to wait, negative to wait forever
+     * @param nanos receives the arrival time of b[off + i] at nanos[off + i]
+     * @return number of bytes copied, 0 on timeout
+     * @throws IOException when the producer failed and no data is left
+     */
+    int read(byte b[], int off, int len, int minimum, int timeout, long nanos[]) throws IOException {
+        lock.lock();
+        try {
+            await(minimum, timeout);
+            int n = Math.min(len, count);
+            copyOut(b, off, n);
+            long pos = consumed;
+            int r = stampHead;
+            int i = 0;
+            while (i < n) {
+                int k = (int) Math.min(n - i, stampEnd[r] - pos);
+                Arrays.fill(nanos, off + i, off + i + k, stampNanos[r]);
+                i += k;
+                pos += k;
+                r = (r + 1) % STAMP_RECORDS;
+            }
+            consume(n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read up to <code>len</code> bytes, stopping right after the first
+     * occurrence of the terminator sequence.
+     *
+     * @param b destination
+     * @param off offset in b
+     * @param len maximum number of bytes
+     * @param t terminator sequence
+     * @param timeout milliseconds to wait, negative to wait forever
+     * @return number of bytes copied, 0 on timeout
+     * @throws IOException when the producer failed and no data is left
+     */
+    int readTerminated(byte b[], int off, int len, byte t[], int timeout) throws IOException {
+        lock.lock();
+        try {
+            long deadline = timeout < 0 ? 0 : System.currentTimeMillis() + timeout;
+            int n = 0;
+            while (n < len) {
+                int left = timeout < 0 ? -1 : (int) Math.max(0, deadline - System.currentTimeMillis());
+                if (!await(1, left)) {
+                    break;
+                }
+                b[off + n++] = buf[readIndex];
+                consume(1);
+                if (t.length > 0 && n >= t.length && endsWith(b, off + n, t)) {
+                    break;
+                }
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean endsWith(byte b[], int end, byte t[]) {
+        for (int i = 0; i < t.length; i++) {
+            if (b[end - t.length + i] != t[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait until <code>minimum</code> bytes are buffered, or the buffer is
+     * full when it holds fewer than that, since it stops filling then.
+     * Returns early once the buffer has been stopped.
+     *
+     * @return true if at least one byte is buffered
+     */
+    private boolean await(int minimum, int timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (count < Math.min(minimum, buf.length) && filling) {
+                if (timeout < 0) {
+                    arrived.await();
+                } else {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        break;
+                    }
+                    arrived.await(left, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (count == 0 && failure != null) {
+            IOException f = failure;
+            failure = null;
+            throw f;
+        }
+        return count > 0;
+    }
+
+    private void copyOut(byte b[], int off, int n) {
+        int first = Math.min(n, buf.length - readIndex);
+        System.arraycopy(buf, readIndex, b, off, first);
+        if (n > first) {
+            System.arraycopy(buf, 0, b, off + first, n - first);
+        }
+    }
+
+    private void consume(int n) {
+        readIndex += n;
+        if (readIndex >= buf.length) {
+            readIndex -= buf.length;
+        }
+        count -= n;
+        consumed += n;
+        while (stampCount > 0 && stampEnd[stampHead] <= consumed) {
+            stampHead = (stampHead + 1) % STAMP_RECORDS;
+            stampCount--;
+        }
+    }
+}
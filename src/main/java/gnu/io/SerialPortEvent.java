@@ -120,6 +120,25 @@ public class SerialPortEvent extends EventObject {
      * The BI port event signals a break interrupt.
      */
     public static final int BI = 10;
+    /**
+     * Event mask with every event type set.
+     */
+    public static final int ALL_EVENTS = 0x7FE;
+
+    /**
+     * Builds an event mask for listeners added with an event mask. The bit of
+     * an event type is <code>1 &lt;&lt; eventType</code>.
+     *
+     * @param eventTypes event types to include
+     * @return the event mask
+     */
+    public static int mask(int... eventTypes) {
+        int mask = 0;
+        for (int t : eventTypes) {
+            mask |= 1 << t;
+        }
+        return mask;
+    }
 
     private final boolean oldValue;
     private final boolean newValue;
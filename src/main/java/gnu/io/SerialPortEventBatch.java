@@ -0,0 +1,169 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io;
+
+import java.util.Arrays;
+
+/**
+ * A reusable batch of port events, encoded in primitive arrays so that
+ * delivering it allocates nothing.
+ *
+ * @version 2.3
+ * @see gnu.io.SerialPortBatchListener
+ */
+public final class SerialPortEventBatch {
+
+    private final SerialPort port;
+    private int[] types = new int[16];
+    private boolean[] values = new boolean[16];
+    private int size = 0;
+    private boolean hasData = false;
+
+    SerialPortEventBatch(SerialPort port) {
+        this.port = port;
+    }
+
+    /**
+     * @return the port the events happened on
+     */
+    public SerialPort getPort() {
+        return port;
+    }
+
+    /**
+     * @return number of events in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i index of the event, from 0 to size() - 1
+     * @return its type, one of the SerialPortEvent constants
+     */
+    public int getEventType(int i) {
+        checkIndex(i);
+        return types[i];
+    }
+
+    /**
+     * @param i index of the event, from 0 to size() - 1
+     * @return the value of the signal after the event
+     */
+    public boolean getNewValue(int i) {
+        checkIndex(i);
+        return values[i];
+    }
+
+    /**
+     * @param i index of the event, from 0 to size() - 1
+     * @return the value of the signal before the event
+     */
+    public boolean getOldValue(int i) {
+        return !getNewValue(i);
+    }
+
+    /**
+     * @param eventType one of the SerialPortEvent constants
+     * @return true if the batch holds an event of that type
+     */
+    public boolean contains(int eventType) {
+        if (eventType == SerialPortEvent.DATA_AVAILABLE) {
+            return hasData;
+        }
+        for (int i = 0; i < size; i++) {
+            if (types[i] == eventType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add an event, folding DATA_AVAILABLE into an earlier one.
+     *
+     * @return false if it was folded
+     */
+    boolean add(int eventType, boolean state) {
+        if (eventType == SerialPortEvent.DATA_AVAILABLE) {
+            if (hasData) {
+                return false;
+            }
+            hasData = true;
+        }
+        if (size == types.length) {
+            types = Arrays.copyOf(types, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        types[size] = eventType;
+        values[size] = state;
+        size++;
+        return true;
+    }
+
+    void clear() {
+        size = 0;
+        hasData = false;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Event " + i + " of " + size);
+        }
+    }
+}
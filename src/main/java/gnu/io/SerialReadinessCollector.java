@@ -0,0 +1,268 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * A convenience collector of the readiness of many open
+ * <code>RXTXPort</code>s, in the style of a selector.
+ *
+ * Ports are registered with an interest set of <code>OP_*</code> flags and
+ * an application thread calls <code>select()</code> to learn which ports
+ * have data to read, have drained their output or have seen a modem line
+ * change. The model follows <code>java.nio.channels.Selector</code>: ready
+ * keys are added to <code>selectedKeys()</code>, readiness arriving for a
+ * key still in that set is added to its ready set, and the caller removes
+ * keys once handled.
+ *
+ * It does not serve many ports with few threads. Readiness is fed by the
+ * event loop of each registered port, and the native library runs that
+ * loop on its own monitor thread for every open port, so registering 100
+ * ports costs 100 monitor threads plus whatever thread calls
+ * <code>select()</code>. What it gives is a single place to consume the
+ * readiness of all those ports.
+ *
+ * @version 2.3
+ */
+public final class SerialReadinessCollector implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(SerialReadinessCollector.class.getName());
+
+    /**
+     * Data is available for reading (DATA_AVAILABLE).
+     */
+    public static final int OP_READ = 1;
+    /**
+     * The output buffer has been drained (OUTPUT_BUFFER_EMPTY).
+     */
+    public static final int OP_WRITE = 2;
+    /**
+     * A modem line changed its level (CTS, DSR, RI or CD).
+     */
+    public static final int OP_MODEM = 4;
+
+    private final Set<SerialSelectionKey> keys = Collections.newSetFromMap(new ConcurrentHashMap<SerialSelectionKey, Boolean>());
+    private final Set<SerialSelectionKey> selectedKeys = new HashSet<SerialSelectionKey>();
+    /**
+     * Keys that became ready since the last select. Guarded by itself.
+     */
+    private final ArrayDeque<SerialSelectionKey> readyQueue = new ArrayDeque<SerialSelectionKey>();
+    private boolean wakeupPending = false;
+    private volatile boolean open = true;
+
+    /**
+     * Register a port with this selector. The key is added as an extra
+     * listener of the port, next to any other listeners, and the events
+     * matching <code>ops</code> are enabled for the key alone.
+     *
+     * @param port an open port
+     * @param ops interest set, a combination of <code>OP_*</code> flags
+     * @param attachment an object to attach to the key, may be null
+     * @return the selection key of the port
+     */
+    public SerialSelectionKey register(RXTXPort port, int ops, Object attachment) {
+        logger.fine("SerialReadinessCollector:register( " + port.getName() + ", " + ops + " )");
+        if (!open) {
+            throw new IllegalStateException("Selector is closed");
+        }
+        SerialSelectionKey key = new SerialSelectionKey(this, port, attachment);
+        port.attachEventListener(key, SerialPortEvent.ALL_EVENTS);
+        keys.add(key);
+        key.interestOps(ops);
+        return key;
+    }
+
+    /**
+     * @return the keys currently registered with this selector
+     */
+    public Set<SerialSelectionKey> keys() {
+        return Collections.unmodifiableSet(keys);
+    }
+
+    /**
+     * The selected key set. Keys are added by the select methods and must be
+     * removed by the caller once handled. Only the selecting thread may use
+     * this set.
+     *
+     * @return the selected key set
+     */
+    public Set<SerialSelectionKey> selectedKeys() {
+        return selectedKeys;
+    }
+
+    /**
+     * Select ports that are ready, without blocking.
+     *
+     * @return number of keys added to the selected key set
+     */
+    public int selectNow() {
+        synchronized (readyQueue) {
+            wakeupPending = false;
+            return collectReady();
+        }
+    }
+
+    /**
+     * Block until at least one registered port is ready, the selector is
+     * woken up or the current thread is interrupted.
+     *
+     * @return number of keys added to the selected key set
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public int select() throws InterruptedException {
+        return select(0);
+    }
+
+    /**
+     * Block until at least one registered port is ready, the timeout expires,
+     * the selector is woken up or the current thread is interrupted.
+     *
+     * @param timeout maximum time to wait in milliseconds, 0 waits forever
+     * @return number of keys added to the selected key set
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public int select(long timeout) throws InterruptedException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Unexpected negative timeout value");
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (readyQueue) {
+            while (readyQueue.isEmpty() && !wakeupPending && open) {
+                if (timeout == 0) {
+                    readyQueue.wait();
+                } else {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        break;
+                    }
+                    readyQueue.wait(left);
+                }
+            }
+            wakeupPending = false;
+            return collectReady();
+        }
+    }
+
+    /**
+     * Make a blocked or the next <code>select()</code> return immediately.
+     */
+    public void wakeup() {
+        synchronized (readyQueue) {
+            wakeupPending = true;
+            readyQueue.notifyAll();
+        }
+    }
+
+    /**
+     * @return true until the selector is closed
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Cancel all keys and wake up a blocked select. The ports stay open.
+     */
+    @Override
+    public void close() {
+        logger.fine("SerialReadinessCollector:close()");
+        open = false;
+        for (SerialSelectionKey key : keys) {
+            key.cancel();
+        }
+        wakeup();
+    }
+
+    /**
+     * Move ready keys to the selected key set. Caller holds readyQueue.
+     */
+    private int collectReady() {
+        int n = 0;
+        SerialSelectionKey key;
+        while ((key = readyQueue.poll()) != null) {
+            boolean selected = selectedKeys.contains(key);
+            if (key.collectReadyOps(selected) != 0) {
+                /* like Selector, count keys added or with new readiness */
+                selectedKeys.add(key);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Called from a port event loop when a key turns ready.
+     */
+    void enqueue(SerialSelectionKey key) {
+        synchronized (readyQueue) {
+            readyQueue.add(key);
+            readyQueue.notifyAll();
+        }
+    }
+
+    void deregister(SerialSelectionKey key) {
+        keys.remove(key);
+    }
+}
@@ -0,0 +1,257 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The registration of a <code>RXTXPort</code> with a
+ * <code>SerialReadinessCollector</code>.
+ *
+ * @version 2.3
+ * @see gnu.io.SerialReadinessCollector
+ */
+public final class SerialSelectionKey implements SerialPortEventListener {
+
+    private final SerialReadinessCollector selector;
+    private final RXTXPort port;
+    private volatile Object attachment;
+    private volatile int interestOps = 0;
+    private volatile boolean valid = true;
+    /**
+     * Readiness reported by the event loop and not yet collected by select.
+     */
+    private final AtomicInteger pendingOps = new AtomicInteger();
+    /**
+     * Readiness as of the last select, only used by the selecting thread.
+     */
+    private int readyOps = 0;
+
+    SerialSelectionKey(SerialReadinessCollector selector, RXTXPort port, Object attachment) {
+        this.selector = selector;
+        this.port = port;
+        this.attachment = attachment;
+    }
+
+    /**
+     * @return the registered port
+     */
+    public RXTXPort port() {
+        return port;
+    }
+
+    /**
+     * @return the selector this key belongs to
+     */
+    public SerialReadinessCollector selector() {
+        return selector;
+    }
+
+    /**
+     * @return the attached object, may be null
+     */
+    public Object attachment() {
+        return attachment;
+    }
+
+    /**
+     * @param ob object to attach, may be null
+     * @return the previously attached object
+     */
+    public Object attach(Object ob) {
+        Object old = attachment;
+        attachment = ob;
+        return old;
+    }
+
+    /**
+     * @return the interest set
+     */
+    public int interestOps() {
+        return interestOps;
+    }
+
+    /**
+     * Change the interest set. The key acquires the port events behind it
+     * and releases those it no longer needs. The notifyOn* settings of the
+     * application are not touched, and other users of the same events keep
+     * them.
+     *
+     * @param ops a combination of <code>SerialReadinessCollector.OP_*</code> flags
+     * @return this key
+     */
+    public synchronized SerialSelectionKey interestOps(int ops) {
+        if (!valid) {
+            throw new IllegalStateException("Key is cancelled");
+        }
+        int changed = interestOps ^ ops;
+        interestOps = ops;
+        if ((changed & SerialReadinessCollector.OP_READ) != 0) {
+            useEvent(SerialPortEvent.DATA_AVAILABLE, (ops & SerialReadinessCollector.OP_READ) != 0);
+        }
+        if ((changed & SerialReadinessCollector.OP_WRITE) != 0) {
+            useEvent(SerialPortEvent.OUTPUT_BUFFER_EMPTY, (ops & SerialReadinessCollector.OP_WRITE) != 0);
+        }
+        if ((changed & SerialReadinessCollector.OP_MODEM) != 0) {
+            boolean enable = (ops & SerialReadinessCollector.OP_MODEM) != 0;
+            useEvent(SerialPortEvent.CTS, enable);
+            useEvent(SerialPortEvent.DSR, enable);
+            useEvent(SerialPortEvent.RI, enable);
+            useEvent(SerialPortEvent.CD, enable);
+        }
+        return this;
+    }
+
+    private void useEvent(int event, boolean use) {
+        if (use) {
+            port.acquireEvent(event);
+        } else {
+            port.releaseEvent(event);
+        }
+    }
+
+    /**
+     * @return the ready set as of the last select
+     */
+    public int readyOps() {
+        return readyOps;
+    }
+
+    public boolean isReadable() {
+        return (readyOps & SerialReadinessCollector.OP_READ) != 0;
+    }
+
+    public boolean isWritable() {
+        return (readyOps & SerialReadinessCollector.OP_WRITE) != 0;
+    }
+
+    public boolean isModemChanged() {
+        return (readyOps & SerialReadinessCollector.OP_MODEM) != 0;
+    }
+
+    /**
+     * @return false once the key has been cancelled
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Stop the notifications of the port and remove the key from its
+     * selector. The port stays open and its event loop keeps running.
+     */
+    public synchronized void cancel() {
+        if (!valid) {
+            return;
+        }
+        interestOps(0);
+        valid = false;
+        port.detachEventListener(this);
+        selector.deregister(this);
+    }
+
+    /**
+     * Event loop callback, translates port events into readiness.
+     *
+     * @param event the port event
+     */
+    @Override
+    public void serialEvent(SerialPortEvent event) {
+        int op;
+        switch (event.getEventType()) {
+            case SerialPortEvent.DATA_AVAILABLE:
+                op = SerialReadinessCollector.OP_READ;
+                break;
+            case SerialPortEvent.OUTPUT_BUFFER_EMPTY:
+                op = SerialReadinessCollector.OP_WRITE;
+                break;
+            case SerialPortEvent.CTS:
+            case SerialPortEvent.DSR:
+            case SerialPortEvent.RI:
+            case SerialPortEvent.CD:
+                op = SerialReadinessCollector.OP_MODEM;
+                break;
+            default:
+                return;
+        }
+        if (!valid || (interestOps & op) == 0) {
+            return;
+        }
+        int prev;
+        do {
+            prev = pendingOps.get();
+        } while (!pendingOps.compareAndSet(prev, prev | op));
+        if (prev == 0) {
+            selector.enqueue(this);
+        }
+    }
+
+    /**
+     * Take the pending readiness into readyOps. Selecting thread only.
+     *
+     * @param selected true if the key is still in the selected key set, its
+     * ready set is then added to instead of replaced
+     * @return the ready operations that were not in readyOps before
+     */
+    int collectReadyOps(boolean selected) {
+        int ops = pendingOps.getAndSet(0) & interestOps;
+        int before = selected ? readyOps : 0;
+        readyOps = before | ops;
+        return ops & ~before;
+    }
+}
@@ -0,0 +1,214 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io.codec;
+
+/**
+ * Frame assembly and pool handling shared by the decoders.
+ *
+ * @version 2.3
+ */
+public abstract class AbstractFrameDecoder implements FrameDecoder {
+
+    protected final FramePool pool;
+    private Frame current;
+    private Frame completed;
+    private boolean discarding;
+    private long dropped;
+
+    /**
+     * @param pool pool to take frames from
+     */
+    protected AbstractFrameDecoder(FramePool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public Frame poll() {
+        Frame f = completed;
+        completed = null;
+        return f;
+    }
+
+    @Override
+    public void reset() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+        discarding = false;
+        resetState();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return dropped;
+    }
+
+    /**
+     * Reset the decoder specific state.
+     */
+    protected abstract void resetState();
+
+    /**
+     * @return true if a completed frame waits to be polled, decode must
+     * return then
+     */
+    protected final boolean hasCompleted() {
+        return completed != null;
+    }
+
+    /**
+     * @return number of bytes in the partial frame
+     */
+    protected final int partialLength() {
+        return current == null ? 0 : current.length;
+    }
+
+    /**
+     * @return the partial frame, only valid while partialLength() is not 0
+     */
+    protected final Frame partial() {
+        return current;
+    }
+
+    /**
+     * Append a byte to the partial frame, dropping the frame if it overflows.
+     */
+    protected final void append(byte b) {
+        if (discarding) {
+            return;
+        }
+        if (current == null) {
+            current = pool.acquire();
+        }
+        if (!current.put(b)) {
+            drop();
+        }
+    }
+
+    /**
+     * Append bytes to the partial frame, dropping the frame if it overflows.
+     */
+    protected final void append(byte[] b, int off, int len) {
+        if (discarding || len == 0) {
+            return;
+        }
+        if (current == null) {
+            current = pool.acquire();
+        }
+        if (!current.put(b, off, len)) {
+            drop();
+        }
+    }
+
+    /**
+     * Remove bytes from the end of the partial frame.
+     */
+    protected final void truncate(int n) {
+        current.length -= n;
+    }
+
+    /**
+     * Finish the partial frame. Empty frames are ignored.
+     */
+    protected final void complete() {
+        complete(false);
+    }
+
+    /**
+     * Finish the partial frame.
+     *
+     * @param keepEmpty true to hand out an empty frame as well, for formats
+     * where it is a valid frame rather than a doubled delimiter
+     */
+    protected final void complete(boolean keepEmpty) {
+        if (discarding) {
+            discarding = false;
+        } else if (current != null && current.length > 0) {
+            completed = current;
+            current = null;
+        } else if (keepEmpty) {
+            if (current == null) {
+                current = pool.acquire();
+            }
+            completed = current;
+            current = null;
+        }
+    }
+
+    /**
+     * Drop the partial frame and ignore bytes until the next frame boundary.
+     */
+    protected final void drop() {
+        if (!discarding) {
+            dropped++;
+            discarding = true;
+        }
+        if (current != null) {
+            current.length = 0;
+        }
+    }
+
+    /**
+     * Drop the partial frame, the next byte starts a new one.
+     */
+    protected final void dropAndResync() {
+        drop();
+        discarding = false;
+    }
+}
@@ -0,0 +1,176 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io.codec;
+
+/**
+ * HDLC-like decoder with asynchronous byte stuffing (RFC 1662): frames are
+ * enclosed in 0x7E flags, and 0x7D escapes the next byte, which is then
+ * XORed with 0x20. By default each frame ends in a 16 bit frame check
+ * sequence, low byte first, which is verified and stripped.
+ *
+ * @version 2.3
+ */
+public final class HdlcDecoder extends AbstractFrameDecoder {
+
+    public static final int FLAG = 0x7E;
+    public static final int ESCAPE = 0x7D;
+
+    private static final int GOOD_FCS = 0xF0B8;
+    private static final int[] FCS_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int v = i;
+            for (int k = 0; k < 8; k++) {
+                v = (v & 1) != 0 ? (v >>> 1) ^ 0x8408 : v >>> 1;
+            }
+            FCS_TABLE[i] = v;
+        }
+    }
+
+    private final boolean checkFcs;
+    private boolean escaped;
+
+    /**
+     * Decoder checking and stripping the frame check sequence.
+     *
+     * @param pool pool to take frames from
+     */
+    public HdlcDecoder(FramePool pool) {
+        this(pool, true);
+    }
+
+    /**
+     * @param pool pool to take frames from
+     * @param checkFcs true to verify and strip the FCS-16 trailer
+     */
+    public HdlcDecoder(FramePool pool, boolean checkFcs) {
+        super(pool);
+        this.checkFcs = checkFcs;
+    }
+
+    /**
+     * FCS-16 of a block of bytes, as used by PPP in HDLC-like framing.
+     *
+     * @param fcs initial value, 0xFFFF for a new frame
+     * @param b data
+     * @param off offset in b
+     * @param len number of bytes
+     * @return updated fcs, the value sent is its complement
+     */
+    public static int fcs16(int fcs, byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            fcs = (fcs >>> 8) ^ FCS_TABLE[(fcs ^ b[i]) & 0xff];
+        }
+        return fcs;
+    }
+
+    @Override
+    public int decode(byte[] b, int off, int len) {
+        int i = off;
+        int stop = off + len;
+        while (i < stop && !hasCompleted()) {
+            int run = i;
+            if (!escaped) {
+                while (run < stop && (b[run] & 0xff) != FLAG && (b[run] & 0xff) != ESCAPE) {
+                    run++;
+                }
+                append(b, i, run - i);
+                i = run;
+                if (i == stop) {
+                    break;
+                }
+            }
+            int c = b[i++] & 0xff;
+            if (c == FLAG) {
+                if (escaped) {
+                    /* aborted frame */
+                    escaped = false;
+                    drop();
+                } else {
+                    finish();
+                }
+                complete();
+            } else if (escaped) {
+                escaped = false;
+                append((byte) (c ^ 0x20));
+            } else {
+                escaped = true;
+            }
+        }
+        return i - off;
+    }
+
+    private void finish() {
+        int n = partialLength();
+        if (!checkFcs || n == 0) {
+            return;
+        }
+        Frame f = partial();
+        if (n < 3 || fcs16(0xFFFF, f.data, 0, n) != GOOD_FCS) {
+            drop();
+            return;
+        }
+        truncate(2);
+    }
+
+    @Override
+    protected void resetState() {
+        escaped = false;
+    }
+}
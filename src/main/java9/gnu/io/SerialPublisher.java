@@ -0,0 +1,289 @@
+/*-------------------------------------------------------------------------
+ |   RXTX License v 2.1 - LGPL v 2.1 + Linking Over Controlled Interface.
+ |   RXTX is a native interface to serial ports in java.
+ |   Copyright 1997-2008 by Trent Jarvi tjarvi@qbang.org and others who
+ |   actually wrote it.  See individual source files for more information.
+ |
+ |   A copy of the LGPL v 2.1 may be found at
+ |   http://www.gnu.org/licenses/lgpl.txt on March 4th 2007.  A copy is
+ |   here for your convenience.
+ |
+ |   This library is free software; you can redistribute it and/or
+ |   modify it under the terms of the GNU Lesser General Public
+ |   License as published by the Free Software Foundation; either
+ |   version 2.1 of the License, or (at your option) any later version.
+ |
+ |   This library is distributed in the hope that it will be useful,
+ |   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ |   Lesser General Public License for more details.
+ |
+ |   An executable that contains no derivative of any portion of RXTX, but
+ |   is designed to work with RXTX by being dynamically linked with it,
+ |   is considered a "work that uses the Library" subject to the terms and
+ |   conditions of the GNU Lesser General Public License.
+ |
+ |   The following has been added to the RXTX License to remove
+ |   any confusion about linking to RXTX.   We want to allow in part what
+ |   section 5, paragraph 2 of the LGPL does not permit in the special
+ |   case of linking over a controlled interface.  The intent is to add a
+ |   Java Specification Request or standards body defined interface in the 
+ |   future as another exception but one is not currently available.
+ |
+ |   http://www.fsf.org/licenses/gpl-faq.html#LinkingOverControlledInterface
+ |
+ |   As a special exception, the copyright holders of RXTX give you
+ |   permission to link RXTX with independent modules that communicate with
+ |   RXTX solely through the Sun Microsytems CommAPI interface version 2,
+ |   regardless of the license terms of these independent modules, and to copy
+ |   and distribute the resulting combined work under terms of your choice,
+ |   provided that every copy of the combined work is accompanied by a complete
+ |   copy of the source code of RXTX (the version of RXTX used to produce the
+ |   combined work), being distributed under the terms of the GNU Lesser General
+ |   Public License plus this exception.  An independent module is a
+ |   module which is not derived from or based on RXTX.
+ |
+ |   Note that people who make modified versions of RXTX are not obligated
+ |   to grant this special exception for their modified versions; it is
+ |   their choice whether to do so.  The GNU Lesser General Public License
+ |   gives permission to release a modified version without this exception; this
+ |   exception also makes it possible to release a modified version which
+ |   carries forward this exception.
+ |
+ |   You should have received a copy of the GNU Lesser General Public
+ |   License along with this library; if not, write to the Free
+ |   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ |   All trademarks belong to their respective owners.
+ --------------------------------------------------------------------------*/
+package gnu.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * A <code>Flow.Publisher</code> of the data received by a port.
+ *
+ * Data is read when the event loop reports DATA_AVAILABLE, or when the
+ * subscriber requests more, and only what the driver already holds is read,
+ * so neither the event loop nor a requesting thread blocks. Each
+ * <code>onNext</code> carries one chunk of at most the configured size, in a
+ * new heap buffer the subscriber owns.
+ *
+ * Without demand nothing is read and data backs up in the driver. If RTS/CTS
+ * input flow control is set on the port, RTS is also dropped while demand
+ * is zero and raised again on the next request, so the sender is throttled
+ * instead of the kernel buffer overflowing.
+ *
+ * One subscriber at a time. While subscribed the publisher is an extra event
+ * listener of the port, next to any other listeners. Requires Java 9.
+ *
+ * @version 2.3
+ */
+public final class SerialPublisher implements Flow.Publisher<ByteBuffer> {
+
+    private static final Logger logger = Logger.getLogger(SerialPublisher.class.getName());
+
+    private final RXTXPort port;
+    private final int maxChunk;
+    private final AtomicReference<PortSubscription> current = new AtomicReference<>();
+
+    /**
+     * @param port open port to publish
+     */
+    public SerialPublisher(RXTXPort port) {
+        this(port, 4096);
+    }
+
+    /**
+     * @param port open port to publish
+     * @param maxChunk largest buffer passed to onNext
+     */
+    public SerialPublisher(RXTXPort port, int maxChunk) {
+        if (maxChunk <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.port = port;
+        this.maxChunk = maxChunk;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber);
+        PortSubscription s = new PortSubscription(subscriber);
+        if (!current.compareAndSet(null, s)) {
+            reject(subscriber, new IllegalStateException("Port " + port.getName() + " already has a subscriber"));
+            return;
+        }
+        port.attachEventListener(s, SerialPortEvent.mask(SerialPortEvent.DATA_AVAILABLE));
+        port.acquireEvent(SerialPortEvent.DATA_AVAILABLE);
+        logger.fine("SerialPublisher:subscribe( " + port.getName() + " )");
+        subscriber.onSubscribe(s);
+        s.drain();
+    }
+
+    /**
+     * Complete the current subscriber and stop listening to the port.
+     */
+    public void close() {
+        PortSubscription s = current.get();
+        if (s != null) {
+            s.terminate(null);
+        }
+    }
+
+    private static void reject(Flow.Subscriber<? super ByteBuffer> subscriber, Throwable t) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        subscriber.onError(t);
+    }
+
+    /**
+     * Marks normal completion in PortSubscription.terminal
+     */
+    private static final Throwable COMPLETED = new Throwable("completed");
+
+    private final class PortSubscription implements Flow.Subscription, SerialPortEventListener {
+
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        /* drain passes requested, only the thread that moves it from 0 drains */
+        private final AtomicInteger wip = new AtomicInteger();
+        private final byte[] scratch = new byte[maxChunk];
+        private volatile boolean done;
+        /* set once by terminate(), signalled by the drain pass */
+        private final AtomicReference<Throwable> terminal = new AtomicReference<>();
+        /* only touched while draining */
+        private boolean throttled;
+
+        PortSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                terminate(new IllegalArgumentException("Non-positive request " + n));
+                return;
+            }
+            long d;
+            do {
+                d = demand.get();
+                if (d == Long.MAX_VALUE) {
+                    break;
+                }
+            } while (!demand.compareAndSet(d, d + n < 0 ? Long.MAX_VALUE : d + n));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            logger.fine("SerialPublisher:cancel( " + port.getName() + " )");
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void serialEvent(SerialPortEvent ev) {
+            if (ev.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
+                drain();
+            }
+        }
+
+        /**
+         * Complete, or fail with error. The signal is sent by the drain
+         * pass, so it never overlaps an onNext in progress.
+         */
+        void terminate(Throwable error) {
+            if (done || !terminal.compareAndSet(null, error == null ? COMPLETED : error)) {
+                return;
+            }
+            drain();
+        }
+
+        /**
+         * Move data while there is demand. Calls are serialised: a caller
+         * that finds a pass in progress leaves the work to it, including
+         * the terminal signal.
+         */
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (done) {
+                    release();
+                    return;
+                }
+                Throwable t = terminal.get();
+                if (t != null) {
+                    done = true;
+                    release();
+                    if (t == COMPLETED) {
+                        subscriber.onComplete();
+                    } else {
+                        subscriber.onError(t);
+                    }
+                    return;
+                }
+                try {
+                    while (!done && terminal.get() == null && demand.get() > 0) {
+                        int n = port.readAny(scratch, 0, scratch.length, 0);
+                        if (n <= 0) {
+                            break;
+                        }
+                        if (demand.get() != Long.MAX_VALUE) {
+                            demand.decrementAndGet();
+                        }
+                        subscriber.onNext(ByteBuffer.wrap(Arrays.copyOf(scratch, n)));
+                    }
+                    throttle(demand.get() == 0);
+                } catch (IOException e) {
+                    logger.fine("SerialPublisher:drain() " + e);
+                    done = true;
+                    release();
+                    subscriber.onError(e);
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Drop RTS while there is no demand, with RTS/CTS input flow control.
+         */
+        private void throttle(boolean stop) {
+            if (stop == throttled) {
+                return;
+            }
+            if (stop && (port.getFlowControlMode() & SerialPort.FLOWCONTROL_RTSCTS_IN) == 0) {
+                return;
+            }
+            logger.fine("SerialPublisher:throttle( " + stop + " )");
+            port.setRTS(!stop);
+            throttled = stop;
+        }
+
+        private void release() {
+            if (current.compareAndSet(this, null)) {
+                port.detachEventListener(this);
+                port.releaseEvent(SerialPortEvent.DATA_AVAILABLE);
+                throttle(false);
+            }
+        }
+    }
+}